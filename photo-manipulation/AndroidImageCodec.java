@@ -0,0 +1,120 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.os.Build;
+
+/**
+ * The {@link ImageCodec} the app uses. Decodes subsampled with a {@link BitmapResizer}, keeps
+ * released bitmaps in a {@link BitmapPool} and compresses with Bitmap.compress.
+ */
+public class AndroidImageCodec implements ImageCodec<Bitmap> {
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final CompressFormat mFormat;
+
+    private final BitmapPool mPool;
+
+    private long mPeakBitmapBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public AndroidImageCodec(CompressFormat format, BitmapPool pool) {
+        mFormat = format;
+        mPool = pool;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * WEBP_LOSSY is new in Android 11. Plain WEBP is deprecated from then on, but before it
+     * it's the only WebP there is, and it's lossy below quality 100.
+     */
+    @SuppressWarnings("deprecation")
+    public static CompressFormat getLossyWebpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? CompressFormat.WEBP_LOSSY : CompressFormat.WEBP;
+    }
+
+    public static String getMimeType(CompressFormat format) {
+        switch ( format ) {
+            case PNG:
+                return ImageHeaderProbe.MIME_TYPE_PNG;
+            case JPEG:
+                return ImageHeaderProbe.MIME_TYPE_JPEG;
+            default:
+                return ImageHeaderProbe.MIME_TYPE_WEBP;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    @Override
+    public Bitmap decode(String path, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
+                         int orientation) {
+        BitmapResizer resizer = new BitmapResizer(mPool);
+        Bitmap bitmap = resizer.resize(path, sourceWidth, sourceHeight, targetWidth, targetHeight, orientation);
+        mPeakBitmapBytes = resizer.getPeakBitmapBytes();
+
+        return bitmap;
+    }
+
+    @Override
+    public Bitmap scale(Bitmap image, int width, int height) {
+        return Bitmap.createScaledBitmap(image, width, height, true);
+    }
+
+    @Override
+    public int getWidth(Bitmap image) {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight(Bitmap image) {
+        return image.getHeight();
+    }
+
+    @Override
+    public String getMimeType() {
+        return getMimeType(mFormat);
+    }
+
+    @Override
+    public void compress(Bitmap image, int quality, OutputStream output) throws IOException {
+        if ( !image.compress(mFormat, quality, output) ) {
+            throw new IOException("Could not compress bitmap as " + mFormat);
+        }
+    }
+
+    @Override
+    public void release(Bitmap image) {
+        if ( image == null ) {
+            return;
+        }
+
+        if ( mPool != null ) {
+            mPool.put(image);
+        }
+        else {
+            image.recycle();
+        }
+    }
+
+    /**
+     * The most bitmap memory the last decode held at once.
+     */
+    public long getPeakBitmapBytes() {
+        return mPeakBitmapBytes;
+    }
+}
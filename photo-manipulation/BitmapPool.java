@@ -0,0 +1,268 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Keeps bitmaps that are done with so the next decode can reuse their memory through inBitmap
+ * instead of allocating another one. Processing a burst of photos otherwise allocates (and
+ * collects) a multi megabyte bitmap per photo, and the GC pauses show up as stutter in the
+ * camera.
+ *
+ * Bitmaps are bucketed by their allocation size and a request is served from the smallest
+ * bucket that fits. The pool holds at most its byte budget, dropping the least recently added
+ * bitmaps first, and empties itself when the system asks apps to trim memory. Reuse needs
+ * KitKat, before that the pool just recycles what it's given.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * A pooled bitmap can be up to this many times bigger than what's asked for. Any bigger and
+     * it wastes more memory than allocating a new one would.
+     */
+    private static final int MAX_OVERSIZE = 2;
+
+    private static BitmapPool sInstance;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final TreeMap<Long, ArrayDeque<Bitmap>> mBuckets = new TreeMap<>();
+
+    /**
+     * Every pooled bitmap, oldest first.
+     */
+    private final LinkedHashSet<Bitmap> mBitmaps = new LinkedHashSet<>();
+
+    private long mMaxBytes;
+
+    private long mBytes;
+
+    private long mHits;
+
+    private long mMisses;
+
+    private long mEvictions;
+
+    private boolean mRegistered;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * The pool shared by the photo pipeline, with an eighth of the heap as its budget. It
+     * registers for trim memory callbacks the first time it's given a context.
+     */
+    public static synchronized BitmapPool getInstance(Context context) {
+        if ( sInstance == null ) {
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+        }
+
+        if ( context != null && !sInstance.mRegistered ) {
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+            sInstance.mRegistered = true;
+        }
+
+        return sInstance;
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if ( config == Bitmap.Config.ALPHA_8 ) {
+            return 1;
+        }
+
+        if ( config == Bitmap.Config.RGB_565 ) {
+            return 2;
+        }
+
+        // including the deprecated ARGB_4444, which decodes never produce, so it's at worst overcounted
+        return 4;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * A pooled bitmap big enough to decode a {@code width} by {@code height} image in the given
+     * config into, or null if there isn't one. Its contents and dimensions are whatever they
+     * were, the decoder reconfigures it.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if ( Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT ) {
+            return null;
+        }
+
+        long bytes = (long) width * height * bytesPerPixel(config);
+        Map.Entry<Long, ArrayDeque<Bitmap>> bucket = mBuckets.ceilingEntry(bytes);
+
+        if ( bucket == null || bucket.getKey() > bytes * MAX_OVERSIZE ) {
+            mMisses++;
+            return null;
+        }
+
+        Bitmap bitmap = bucket.getValue().pollLast();
+
+        if ( bucket.getValue().isEmpty() ) {
+            mBuckets.remove(bucket.getKey());
+        }
+
+        mBitmaps.remove(bitmap);
+        mBytes -= bucket.getKey();
+        mHits++;
+
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap that's no longer used to the pool. Bitmaps that can't be reused, or don't
+     * fit in the budget, are recycled.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if ( bitmap == null || bitmap.isRecycled() || mBitmaps.contains(bitmap) ) {
+            return;
+        }
+
+        long bytes = BitmapResizer.sizeOf(bitmap);
+
+        if ( Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !bitmap.isMutable() || bytes > mMaxBytes ) {
+            bitmap.recycle();
+            return;
+        }
+
+        ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+
+        if ( bucket == null ) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(bytes, bucket);
+        }
+
+        bucket.addLast(bitmap);
+        mBitmaps.add(bitmap);
+        mBytes += bytes;
+
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Changes the byte budget, dropping pooled bitmaps if it's now over.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * The bytes held by the pooled bitmaps.
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int getCount() {
+        return mBitmaps.size();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * The fraction of requests served from the pool, 0 if there haven't been any.
+     */
+    public synchronized double getReuseRate() {
+        long requests = mHits + mMisses;
+        return requests == 0 ? 0 : (double) mHits / requests;
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if ( level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL ) {
+            clear();
+        }
+        else if ( level >= TRIM_MEMORY_UI_HIDDEN || level == TRIM_MEMORY_RUNNING_LOW ) {
+            synchronized ( this ) {
+                trimToSize(mMaxBytes / 2);
+            }
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{bytes=" + mBytes + "/" + mMaxBytes + ", count=" + mBitmaps.size() +
+            ", hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions + "}";
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Bitmap> oldest = mBitmaps.iterator();
+
+        while ( mBytes > maxBytes && oldest.hasNext() ) {
+            Bitmap bitmap = oldest.next();
+            oldest.remove();
+
+            long bytes = BitmapResizer.sizeOf(bitmap);
+            ArrayDeque<Bitmap> bucket = mBuckets.get(bytes);
+            bucket.remove(bitmap);
+
+            if ( bucket.isEmpty() ) {
+                mBuckets.remove(bytes);
+            }
+
+            mBytes -= bytes;
+            mEvictions++;
+            bitmap.recycle();
+        }
+    }
+}
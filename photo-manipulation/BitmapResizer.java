@@ -0,0 +1,219 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.os.Build;
+
+/**
+ * Decodes a photo straight to roughly the size it's going to end up at, then scales and
+ * orients it the rest of the way in one filtered pass.
+ *
+ * Decoding a 48MP photo at full size takes close to 200MB before it can be scaled down.
+ * Decoding with the largest power of two inSampleSize that stays at or above the target lets
+ * the jpeg decoder drop coefficients during the IDCT instead, so the full size bitmap never
+ * exists. What's left is at most a 2x downscale, which bilinear filtering handles well.
+ */
+public class BitmapResizer {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final AtomicLong sLargestPeakBitmapBytes = new AtomicLong();
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final BitmapPool mPool;
+
+    private int mSampleSize = 1;
+
+    private long mPeakBitmapBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public BitmapResizer() {
+        this(null);
+    }
+
+    /**
+     * Decodes into bitmaps from the pool when it has one that fits, and gives the intermediate
+     * decode back to it once it's scaled.
+     */
+    public BitmapResizer(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Adds the rotation or flip for one of the ExifInterface ORIENTATION_ values to the matrix,
+     * so the result is upright.
+     */
+    public static void postOrientation(Matrix matrix, int orientation) {
+        switch ( orientation ) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(-90);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The largest peak of any resize in this process so far.
+     */
+    public static long getLargestPeakBitmapBytes() {
+        return sLargestPeakBitmapBytes.get();
+    }
+
+    static long sizeOf(Bitmap bitmap) {
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ) {
+            return bitmap.getAllocationByteCount();
+        }
+
+        return bitmap.getByteCount();
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Decodes the photo and scales it to the target, which is given in the stored (not yet
+     * rotated) orientation, then applies the orientation. It's only ever scaled down, a target
+     * bigger than the source keeps the source size. Returns null if the photo can't be decoded.
+     */
+    public Bitmap resize(String path, int sourceWidth, int sourceHeight,
+                         int targetWidth, int targetHeight, int orientation) {
+        if ( sourceWidth <= 0 || sourceHeight <= 0 || targetWidth <= 0 || targetHeight <= 0 ) {
+            return null;
+        }
+
+        targetWidth = Math.min(targetWidth, sourceWidth);
+        targetHeight = Math.min(targetHeight, sourceHeight);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = ImageGeometry.calculateInSampleSize(sourceWidth, sourceHeight, targetWidth, targetHeight);
+
+        Bitmap decoded = decode(path, options, sourceWidth, sourceHeight);
+
+        if ( decoded == null ) {
+            return null;
+        }
+
+        mSampleSize = options.inSampleSize;
+        mPeakBitmapBytes = sizeOf(decoded);
+
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) targetWidth / decoded.getWidth(), (float) targetHeight / decoded.getHeight());
+        postOrientation(matrix, orientation);
+
+        Bitmap result = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+
+        // createBitmap hands back the source when there's nothing to do
+        if ( result != decoded ) {
+            mPeakBitmapBytes += sizeOf(result);
+            release(decoded);
+        }
+
+        updateLargestPeak(mPeakBitmapBytes);
+
+        return result;
+    }
+
+    /**
+     * The inSampleSize used by the last resize.
+     */
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * The most bitmap memory the last resize held at once, the decoded and the scaled bitmap
+     * together.
+     */
+    public long getPeakBitmapBytes() {
+        return mPeakBitmapBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private Bitmap decode(String path, BitmapFactory.Options options, int sourceWidth, int sourceHeight) {
+        if ( mPool == null ) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+
+        // the decoder rounds sampled sizes differently by format, so ask for the larger
+        int sampleSize = options.inSampleSize;
+        options.inMutable = true;
+        options.inBitmap = mPool.get((sourceWidth + sampleSize - 1) / sampleSize,
+                                     (sourceHeight + sampleSize - 1) / sampleSize, Bitmap.Config.ARGB_8888);
+
+        Bitmap decoded;
+
+        try {
+            decoded = BitmapFactory.decodeFile(path, options);
+        }
+        catch ( IllegalArgumentException e ) {
+            // the pooled bitmap couldn't be decoded into after all, so allocate one
+            mPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+
+        if ( decoded == null ) {
+            mPool.put(options.inBitmap);
+        }
+
+        return decoded;
+    }
+
+    private void release(Bitmap bitmap) {
+        if ( mPool != null ) {
+            mPool.put(bitmap);
+        }
+        else {
+            bitmap.recycle();
+        }
+    }
+
+    private static void updateLargestPeak(long peak) {
+        long largest = sLargestPeakBitmapBytes.get();
+
+        while ( peak > largest && !sLargestPeakBitmapBytes.compareAndSet(largest, peak) ) {
+            largest = sLargestPeakBitmapBytes.get();
+        }
+    }
+}
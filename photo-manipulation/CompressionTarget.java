@@ -0,0 +1,148 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.Locale;
+
+/**
+ * How hard to compress a photo: either a fixed quality, or the best quality that keeps the file
+ * under a byte budget without dropping below a quality floor.
+ *
+ * Forms choose one with a string, the same way they override the photo size:
+ * <ul>
+ * <li>{@code "85"} always compresses at quality 85</li>
+ * <li>{@code "500kb"} is the best quality under 500KB, down to {@link #DEFAULT_MIN_QUALITY}</li>
+ * <li>{@code "2mb:70"} is the best quality under 2MB, but never below 70</li>
+ * </ul>
+ * The floor wins over the budget, a photo that can't fit at the floor is written at the floor.
+ */
+public class CompressionTarget {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    public static final int MAX_QUALITY = 100;
+
+    /**
+     * Below about this, jpeg blocking is obvious on photos of forms and signs.
+     */
+    public static final int DEFAULT_MIN_QUALITY = 50;
+
+    public static final CompressionTarget DEFAULT = fixed(MAX_QUALITY);
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final int mQuality;
+
+    private final int mMinQuality;
+
+    private final long mMaxBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private CompressionTarget(int quality, int minQuality, long maxBytes) {
+        mQuality = quality;
+        mMinQuality = minQuality;
+        mMaxBytes = maxBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    public static CompressionTarget fixed(int quality) {
+        quality = clampQuality(quality);
+        return new CompressionTarget(quality, quality, 0);
+    }
+
+    public static CompressionTarget maxBytes(long maxBytes, int minQuality) {
+        return new CompressionTarget(MAX_QUALITY, clampQuality(minQuality), Math.max(1, maxBytes));
+    }
+
+    /**
+     * Parses a form's compression setting, returning null if it isn't one.
+     */
+    public static CompressionTarget parse(String value) {
+        if ( value == null ) {
+            return null;
+        }
+
+        String[] parts = value.trim().toLowerCase(Locale.US).split(":");
+
+        try {
+            if ( parts.length == 1 && !parts[0].endsWith("b") ) {
+                return fixed(Integer.parseInt(parts[0]));
+            }
+
+            if ( parts.length > 2 ) {
+                return null;
+            }
+
+            long maxBytes = parseBytes(parts[0]);
+            int minQuality = parts.length == 2 ? Integer.parseInt(parts[1]) : DEFAULT_MIN_QUALITY;
+
+            return maxBytes > 0 ? maxBytes(maxBytes, minQuality) : null;
+        }
+        catch ( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    private static long parseBytes(String value) {
+        long multiplier = 1;
+
+        if ( value.endsWith("kb") ) {
+            multiplier = 1024;
+        }
+        else if ( value.endsWith("mb") ) {
+            multiplier = 1024 * 1024;
+        }
+        else if ( !value.endsWith("b") ) {
+            throw new NumberFormatException(value);
+        }
+
+        String number = value.substring(0, value.length() - (multiplier == 1 ? 1 : 2)).trim();
+        return Math.round(Double.parseDouble(number) * multiplier);
+    }
+
+    private static int clampQuality(int quality) {
+        return Math.max(1, Math.min(MAX_QUALITY, quality));
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Whether the quality has to be searched for.
+     */
+    public boolean isAdaptive() {
+        return mMaxBytes > 0 && mMinQuality < mQuality;
+    }
+
+    /**
+     * The quality to use, or to start the search from.
+     */
+    public int getQuality() {
+        return mQuality;
+    }
+
+    public int getMinQuality() {
+        return mMinQuality;
+    }
+
+    /**
+     * The byte budget, 0 if there isn't one.
+     */
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return mMaxBytes > 0 ? mMaxBytes + "b:" + mMinQuality : String.valueOf(mQuality);
+    }
+}
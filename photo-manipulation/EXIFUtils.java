@@ -3,43 +3,106 @@ package com.spatialnetworks.fulcrum.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.sanselan.ImageReadException;
-import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.common.IImageMetadata;
 import org.apache.sanselan.common.RationalNumber;
-import org.apache.sanselan.formats.jpeg.JpegImageMetadata;
 import org.apache.sanselan.formats.tiff.TiffDirectory;
 import org.apache.sanselan.formats.tiff.TiffField;
 import org.apache.sanselan.formats.tiff.TiffImageMetadata;
 import org.apache.sanselan.formats.tiff.TiffImageMetadata.GPSInfo;
-import org.apache.sanselan.formats.tiff.constants.ExifTagConstants;
 import org.apache.sanselan.formats.tiff.constants.GPSTagConstants;
 
+import android.graphics.Bitmap;
 import android.media.ExifInterface;
-import android.text.TextUtils;
 
 import static android.media.ExifInterface.*;
 
 public class EXIFUtils {
 
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final long EXIF_CACHE_SIZE = 2 * 1024 * 1024;
+
+    private static final ExifCache sExifCache = new ExifCache(EXIF_CACHE_SIZE);
+
+    // camera APP1 segments with a thumbnail are usually under 64KB
+    private static final int MAPPED_WINDOW_SIZE = 64 * 1024;
+
+    private static volatile boolean sMemoryMappedReads;
+
+    private static volatile OrientationReader sOrientationReader;
+
+    /**
+     * Reads the orientation with the EXIF parser in this class instead of ExifInterface, so it
+     * works on a plain JVM and shares the EXIF cache.
+     */
+    public static final OrientationReader EXIF_RECORD_ORIENTATION_READER = new OrientationReader() {
+        @Override
+        public int getOrientation(String filePath) {
+            try {
+                ExifRecord record = readCachedRecord(new File(filePath), ORIENTATION_KEYS);
+                return record == null ? ORIENTATION_NORMAL : record.getInt(ExifRecord.TAG_ORIENTATION, ORIENTATION_NORMAL);
+            }
+            catch ( IOException e ) {
+                return ORIENTATION_NORMAL;
+            }
+        }
+    };
+
+    private static final AtomicLong sSkippedBytes = new AtomicLong();
+
+    private static final int[] ORIENTATION_KEYS = { ExifRecord.TAG_ORIENTATION };
+
     // ------------------------------------------------------------------------
     // Class Methods
     // ------------------------------------------------------------------------
 
     public static TiffImageMetadata getImageMetadata(File jpegImageFile)
         throws IOException, ImageReadException {
-        TiffImageMetadata exif = null;
+        /*
+         * Sanselan.getMetadata walks every segment in the file and reads the entire scan data
+         * into memory before it hands back the exif. We only need the APP1 segment, so pull that
+         * out ourselves and let sanselan parse just the TIFF structure inside of it. This is
+         * the same thing the jpeg parser does once it finds the segment.
+         */
+        ExifRecord record = readCachedRecord(jpegImageFile, null);
+
+        if ( record == null ) {
+            return null;
+        }
+
+        return ExifReader.parseImageMetadata(record.getTiffBytes());
+    }
 
-        IImageMetadata metadata = Sanselan.getMetadata(jpegImageFile);
-        JpegImageMetadata jpegMetadata = (JpegImageMetadata) metadata;
-        if ( jpegMetadata != null ) {
-            exif = jpegMetadata.getExif();
+    /**
+     * Returns the thumbnail embedded in the EXIF, or null if the image doesn't have one. Only
+     * the EXIF segment is read, the main image is never decoded.
+     */
+    public static ExifThumbnail getThumbnail(File image) {
+        try {
+            return ExifThumbnail.fromRecord(readCachedRecord(image, ExifThumbnail.KEYS));
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+            return null;
         }
+    }
 
-        return exif;
+    /**
+     * Decodes the embedded thumbnail, or returns null so the caller can fall back to decoding
+     * the full image.
+     */
+    public static Bitmap getThumbnailBitmap(File image) {
+        ExifThumbnail thumbnail = getThumbnail(image);
+        return thumbnail == null ? null : thumbnail.decode();
     }
 
     public static HashMap<String, Object> getRawEXIF(File image) {
@@ -116,73 +179,246 @@ public class EXIFUtils {
         return exif;
     }
 
+    public static ExifRecord getExifRecord(File image) {
+        try {
+            return readCachedRecord(image, null);
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+            return null;
+        }
+    }
+
+    public static ExifRecord getExifRecord(File image, Set<ExifField> fields) {
+        try {
+            return readCachedRecord(image, ExifField.tagsFor(fields));
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads only the whitelisted entries, given as {@link ExifRecord#key(int, int)} values.
+     * The header is mapped rather than read, so the payloads of everything else, like the large
+     * MakerNote and UserComment blobs some OEMs write, are never copied into memory, and the
+     * returned record only holds the requested values. These records bypass the cache.
+     */
+    public static ExifRecord getFilteredExifRecord(File image, int... tags) {
+        int[] keys = tags.clone();
+        Arrays.sort(keys);
+
+        try {
+            ExifRecord record = ExifReader.readRecordMapped(image, keys, MAPPED_WINDOW_SIZE);
+
+            if ( record == null ) {
+                return null;
+            }
+
+            sSkippedBytes.addAndGet(record.getSkippedBytes());
+
+            return record.compact();
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+            return null;
+        }
+    }
+
+    /**
+     * The total number of EXIF bytes filtered reads have skipped since the app started.
+     */
+    public static long getSkippedByteCount() {
+        return sSkippedBytes.get();
+    }
+
     public static HashMap<String, Object> getEXIF(File image) {
-        HashMap<String, Object> raw = getRawEXIF(image);
+        return getEXIF(image, EnumSet.allOf(ExifField.class));
+    }
 
+    /**
+     * Returns only the requested values. The entries the other fields would need are never
+     * decoded, and directories none of the fields live in aren't walked.
+     */
+    public static HashMap<String, Object> getEXIF(File image, Set<ExifField> fields) {
+        return toEXIF(getExifRecord(image, fields), fields);
+    }
+
+    /**
+     * Builds the logical values getEXIF returns out of a record that was read with at least
+     * the entries the fields need.
+     */
+    public static HashMap<String, Object> toEXIF(ExifRecord record, Set<ExifField> fields) {
         HashMap<String, Object> exif = new HashMap<>();
 
-        if ( raw != null ) {
-            if ( raw.containsKey("GPS Latitude Value") ) {
-                exif.put("latitude", raw.get("GPS Latitude Value"));
-            }
-            if ( raw.containsKey("GPS Longitude Value") ) {
-                exif.put("longitude", raw.get("GPS Longitude Value"));
+        if ( record != null ) {
+            // sanselan only reports a location when both coordinates and their refs are there
+            if ( (fields.contains(ExifField.LATITUDE) || fields.contains(ExifField.LONGITUDE)) &&
+                record.has(ExifRecord.TAG_GPS_LATITUDE_REF) && record.has(ExifRecord.TAG_GPS_LONGITUDE_REF) &&
+                record.getCount(ExifRecord.TAG_GPS_LATITUDE) >= 3 && record.getCount(ExifRecord.TAG_GPS_LONGITUDE) >= 3 ) {
+                double latitude = toDegrees(record, ExifRecord.TAG_GPS_LATITUDE, ExifRecord.TAG_GPS_LATITUDE_REF, 'N', 'S');
+                double longitude = toDegrees(record, ExifRecord.TAG_GPS_LONGITUDE, ExifRecord.TAG_GPS_LONGITUDE_REF, 'E', 'W');
+
+                if ( !Double.isNaN(latitude) && !Double.isNaN(longitude) ) {
+                    if ( fields.contains(ExifField.LATITUDE) ) {
+                        exif.put(ExifField.LATITUDE.key, latitude);
+                    }
+                    if ( fields.contains(ExifField.LONGITUDE) ) {
+                        exif.put(ExifField.LONGITUDE.key, longitude);
+                    }
+                }
             }
-            if ( raw.containsKey("GPS H Positioning Error") ) {
-                exif.put("accuracy", raw.get("GPS H Positioning Error"));
+            if ( fields.contains(ExifField.ACCURACY) && record.has(ExifRecord.TAG_GPS_H_POSITIONING_ERROR) ) {
+                exif.put(ExifField.ACCURACY.key, record.getDouble(ExifRecord.TAG_GPS_H_POSITIONING_ERROR, 0));
             }
-            if ( raw.containsKey(GPSTagConstants.GPS_TAG_GPS_ALTITUDE.name) ) {
-                Integer ref = (Integer) raw.get(GPSTagConstants.GPS_TAG_GPS_ALTITUDE_REF.name);
-                Double altitude = (Double) raw.get(GPSTagConstants.GPS_TAG_GPS_ALTITUDE.name);
+            if ( fields.contains(ExifField.ALTITUDE) && record.has(ExifRecord.TAG_GPS_ALTITUDE) ) {
+                int ref = record.getInt(ExifRecord.TAG_GPS_ALTITUDE_REF, GPSTagConstants.GPS_TAG_GPS_ALTITUDE_REF_VALUE_ABOVE_SEA_LEVEL);
+                double altitude = record.getDouble(ExifRecord.TAG_GPS_ALTITUDE, 0);
 
                 if ( ref == GPSTagConstants.GPS_TAG_GPS_ALTITUDE_REF_VALUE_BELOW_SEA_LEVEL ) {
                     altitude = -altitude;
                 }
 
-                exif.put("altitude", altitude);
+                exif.put(ExifField.ALTITUDE.key, altitude);
             }
-            if ( raw.containsKey(GPSTagConstants.GPS_TAG_GPS_IMG_DIRECTION.name) ) {
-                exif.put("direction", raw.get(GPSTagConstants.GPS_TAG_GPS_IMG_DIRECTION.name));
+            if ( fields.contains(ExifField.DIRECTION) && record.has(ExifRecord.TAG_GPS_IMG_DIRECTION) ) {
+                exif.put(ExifField.DIRECTION.key, record.getDouble(ExifRecord.TAG_GPS_IMG_DIRECTION, 0));
             }
-            if ( raw.containsKey(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL.name) ) {
+            if ( fields.contains(ExifField.TIMESTAMP) && record.has(ExifRecord.TAG_DATE_TIME_ORIGINAL) ) {
                 // Reformat the timestampp to be sane, YYYY/MM/DD HH:MM:SS, which is the most
                 // universally supported format for Date parsing. It parses in V8.
-                String stamp = (String) raw.get(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL.name);
+                String timestamp = formatTimestamp(record.getString(ExifRecord.TAG_DATE_TIME_ORIGINAL));
 
-                String[] parts = TextUtils.split(stamp, " ");
-
-                if ( parts.length > 1 ) {
-                    exif.put("timestamp", parts[0].replace(":", "/") + " " + parts[1]);
+                if ( timestamp != null ) {
+                    exif.put(ExifField.TIMESTAMP.key, timestamp);
                 }
             }
-            if ( raw.containsKey(ExifTagConstants.EXIF_TAG_ORIENTATION.name) ) {
-                exif.put("orientation", raw.get(ExifTagConstants.EXIF_TAG_ORIENTATION.name));
+            if ( fields.contains(ExifField.ORIENTATION) && record.has(ExifRecord.TAG_ORIENTATION) ) {
+                exif.put(ExifField.ORIENTATION.key, record.getInt(ExifRecord.TAG_ORIENTATION, ORIENTATION_NORMAL));
             }
-            if ( raw.containsKey(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH.name) ) {
-                exif.put("width", raw.get(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH.name));
+            if ( fields.contains(ExifField.WIDTH) && record.has(ExifRecord.TAG_EXIF_IMAGE_WIDTH) ) {
+                exif.put(ExifField.WIDTH.key, record.getInt(ExifRecord.TAG_EXIF_IMAGE_WIDTH, 0));
             }
-            if ( raw.containsKey(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH.name) ) {
-                exif.put("height", raw.get(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH.name));
+            if ( fields.contains(ExifField.HEIGHT) && record.has(ExifRecord.TAG_EXIF_IMAGE_HEIGHT) ) {
+                exif.put(ExifField.HEIGHT.key, record.getInt(ExifRecord.TAG_EXIF_IMAGE_HEIGHT, 0));
             }
         }
 
         return exif;
     }
 
+    /**
+     * Switches EXIF reads over to memory mapping the header of each file instead of streaming
+     * it, which saves syscalls and copies for bulk metadata scans.
+     */
+    public static void setMemoryMappedReads(boolean enabled) {
+        sMemoryMappedReads = enabled;
+    }
+
+    public static ExifCache getExifCache() {
+        return sExifCache;
+    }
+
+    /**
+     * Drops any cached EXIF for the file. Call this after rewriting an image.
+     */
+    public static void invalidateCache(File image) {
+        sExifCache.invalidate(image);
+    }
+
     public static int getOrientation(String filePath) {
-        try {
-            ExifInterface exifInterface = new ExifInterface(filePath);
-            return exifInterface.getAttributeInt(TAG_ORIENTATION, ORIENTATION_NORMAL);
-        }
-        catch ( IOException e ) {
-            return ORIENTATION_NORMAL;
+        OrientationReader reader = sOrientationReader;
+
+        if ( reader == null ) {
+            reader = ExifInterfaceOrientationReader.INSTANCE;
         }
+
+        return reader.getOrientation(filePath);
+    }
+
+    /**
+     * Replaces how getOrientation reads the orientation tag, which is ExifInterface by default.
+     * Off device (benchmarks, server side tools) ExifInterface isn't available, so pass
+     * {@link #EXIF_RECORD_ORIENTATION_READER} or another stand-in. Pass null to go back to
+     * the default.
+     */
+    public static void setOrientationReader(OrientationReader reader) {
+        sOrientationReader = reader;
     }
 
     // ------------------------------------------------------------------------
     // Private Class Methods
     // ------------------------------------------------------------------------
 
+    private static ExifRecord readCachedRecord(File image, int[] keys) throws IOException {
+        ExifRecord record = sExifCache.get(image, keys);
+
+        if ( record != null ) {
+            return record;
+        }
+
+        long length = image.length();
+        long lastModified = image.lastModified();
+
+        if ( sMemoryMappedReads ) {
+            record = ExifReader.readRecordMapped(image, keys, MAPPED_WINDOW_SIZE);
+
+            // the resize task rewrites files in place, which would fault a live mapping
+            record = record == null ? null : record.detach();
+        }
+        else {
+            record = ExifReader.readRecord(image, keys);
+        }
+
+        if ( record != null ) {
+            sExifCache.put(image, length, lastModified, record);
+        }
+
+        return record;
+    }
+
+    private static double toDegrees(ExifRecord record, int valueKey, int refKey, char positive, char negative) {
+        String ref = record.getString(refKey);
+
+        if ( ref == null || ref.length() == 0 ) {
+            return Double.NaN;
+        }
+
+        double degrees = record.getDouble(valueKey, 0, 0) +
+            record.getDouble(valueKey, 1, 0) / 60.0 +
+            record.getDouble(valueKey, 2, 0) / 3600.0;
+
+        char direction = Character.toUpperCase(ref.charAt(0));
+
+        if ( direction == positive ) {
+            return degrees;
+        }
+        else if ( direction == negative ) {
+            return -degrees;
+        }
+
+        return Double.NaN;
+    }
+
+    private static String formatTimestamp(String stamp) {
+        if ( stamp == null ) {
+            return null;
+        }
+
+        // same as splitting on spaces and joining the first two parts
+        int dateEnd = stamp.indexOf(' ');
+
+        if ( dateEnd < 0 ) {
+            return null;
+        }
+
+        int timeEnd = stamp.indexOf(' ', dateEnd + 1);
+
+        return stamp.substring(0, dateEnd).replace(':', '/') + " " +
+            stamp.substring(dateEnd + 1, timeEnd < 0 ? stamp.length() : timeEnd);
+    }
+
     private static Object convertExifField(TiffField field) {
         Object value;
         try {
@@ -235,4 +471,36 @@ public class EXIFUtils {
 
         return null;
     }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public interface OrientationReader {
+
+        /**
+         * Returns one of the ExifInterface ORIENTATION_ values, ORIENTATION_NORMAL if the file
+         * has no orientation or can't be read.
+         */
+        int getOrientation(String filePath);
+    }
+
+    /**
+     * Kept in its own class so ExifInterface is only loaded when it's actually used.
+     */
+    private static class ExifInterfaceOrientationReader implements OrientationReader {
+
+        static final ExifInterfaceOrientationReader INSTANCE = new ExifInterfaceOrientationReader();
+
+        @Override
+        public int getOrientation(String filePath) {
+            try {
+                ExifInterface exifInterface = new ExifInterface(filePath);
+                return exifInterface.getAttributeInt(TAG_ORIENTATION, ORIENTATION_NORMAL);
+            }
+            catch ( IOException e ) {
+                return ORIENTATION_NORMAL;
+            }
+        }
+    }
 }
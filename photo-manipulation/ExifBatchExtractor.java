@@ -0,0 +1,212 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts EXIF from many photos at once on a fixed pool of worker threads. Results are handed
+ * to a listener as each photo finishes, in no particular order. The number of files open at
+ * the same time is capped separately from the thread count so a large batch doesn't thrash
+ * slow storage.
+ */
+public class ExifBatchExtractor {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final int DEFAULT_MAX_OPEN_FILES = 4;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Semaphore mOpenFiles;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public ExifBatchExtractor() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_OPEN_FILES);
+    }
+
+    public ExifBatchExtractor(int threadCount, int maxOpenFiles) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mOpenFiles = new Semaphore(Math.max(1, maxOpenFiles));
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Extracts every field from the jpegs directly inside the directory.
+     */
+    public Batch extract(File directory, Listener listener) {
+        return extract(listJpegs(directory), EnumSet.allOf(ExifField.class), listener);
+    }
+
+    public Batch extract(Collection<File> images, Listener listener) {
+        return extract(images, EnumSet.allOf(ExifField.class), listener);
+    }
+
+    /**
+     * Queues the images and returns right away. The listener is called on the worker threads,
+     * once per image and then once more when the whole batch is done or cancelled.
+     */
+    public Batch extract(Collection<File> images, final Set<ExifField> fields, final Listener listener) {
+        final Batch batch = new Batch(images.size());
+
+        if ( images.isEmpty() ) {
+            listener.onComplete(0);
+            return batch;
+        }
+
+        for ( final File image : images ) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if ( !batch.isCancelled() ) {
+                            HashMap<String, Object> exif = extractOne(image, fields);
+
+                            if ( !batch.isCancelled() ) {
+                                batch.onExtracted();
+                                listener.onExtracted(image, exif);
+                            }
+                        }
+                    }
+                    catch ( RuntimeException e ) {
+                        FulcrumLogger.log(e);
+                    }
+                    finally {
+                        if ( batch.finishOne() ) {
+                            listener.onComplete(batch.getExtractedCount());
+                        }
+                    }
+                }
+            });
+        }
+
+        return batch;
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private HashMap<String, Object> extractOne(File image, Set<ExifField> fields) {
+        ExifRecord record;
+
+        // hold a permit only while the file is being read, building the values doesn't need it
+        mOpenFiles.acquireUninterruptibly();
+        try {
+            record = EXIFUtils.getExifRecord(image, fields);
+        }
+        finally {
+            mOpenFiles.release();
+        }
+
+        return EXIFUtils.toEXIF(record, fields);
+    }
+
+    static Collection<File> listJpegs(File directory) {
+        File[] images = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName().toLowerCase(Locale.US);
+                return file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg"));
+            }
+        });
+
+        return images == null ? Arrays.<File>asList() : Arrays.asList(images);
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public interface Listener {
+
+        void onExtracted(File image, HashMap<String, Object> exif);
+
+        void onComplete(int extractedCount);
+    }
+
+    public static class Batch {
+
+        private final AtomicInteger mRemaining;
+
+        private final AtomicInteger mExtracted = new AtomicInteger();
+
+        private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+        Batch(int size) {
+            mRemaining = new AtomicInteger(size);
+        }
+
+        /**
+         * Skips every image that hasn't started yet. The listener still gets onComplete.
+         */
+        public void cancel() {
+            mCancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled.get();
+        }
+
+        public boolean isDone() {
+            return mRemaining.get() == 0;
+        }
+
+        public int getExtractedCount() {
+            return mExtracted.get();
+        }
+
+        void onExtracted() {
+            mExtracted.incrementAndGet();
+        }
+
+        boolean finishOne() {
+            return mRemaining.decrementAndGet() == 0;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ExifBatchExtractor #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
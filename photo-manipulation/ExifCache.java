@@ -0,0 +1,177 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An LRU cache of parsed EXIF records bounded by the number of bytes the records hold on to.
+ * Entries are keyed by absolute path and are only returned while the file's length and last
+ * modified time still match what they were when the record was read.
+ */
+public class ExifCache {
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long mMaxBytes;
+
+    private long mBytes;
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mEvictionCount;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public ExifCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the cached record for the file if it's still current and covers the sorted
+     * {@code keys} (null meaning every entry), otherwise null.
+     */
+    public synchronized ExifRecord get(File file, int[] keys) {
+        String path = file.getAbsolutePath();
+        Entry entry = mEntries.get(path);
+
+        if ( entry != null && (entry.length != file.length() || entry.lastModified != file.lastModified()) ) {
+            remove(path);
+            entry = null;
+        }
+
+        if ( entry == null || !entry.record.covers(keys) ) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        return entry.record;
+    }
+
+    /**
+     * Caches a record. The length and last modified time should be taken before the file was
+     * read, so a write that lands while it's being parsed makes the entry stale instead of
+     * pinning the old values. A current record that already covers the new one's keys is kept,
+     * so a narrow read like the orientation doesn't push out a full one.
+     */
+    public synchronized void put(File file, long length, long lastModified, ExifRecord record) {
+        int size = record.getSizeInBytes();
+
+        if ( size > mMaxBytes ) {
+            return;
+        }
+
+        String path = file.getAbsolutePath();
+        Entry existing = mEntries.get(path);
+
+        if ( existing != null && existing.length == length && existing.lastModified == lastModified &&
+            existing.record.covers(record) ) {
+            return;
+        }
+
+        remove(path);
+
+        mEntries.put(path, new Entry(length, lastModified, record, size));
+        mBytes += size;
+
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized void invalidate(File file) {
+        remove(file.getAbsolutePath());
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+
+        // iteration order is least recently used first
+        while ( mBytes > maxBytes && iterator.hasNext() ) {
+            mBytes -= iterator.next().getValue().size;
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized long getSizeInBytes() {
+        return mBytes;
+    }
+
+    public long getMaxSizeInBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long requests = mHitCount + mMissCount;
+        int hitPercent = requests == 0 ? 0 : (int) (100 * mHitCount / requests);
+
+        return "ExifCache[bytes=" + mBytes + ", maxBytes=" + mMaxBytes + ", entries=" + mEntries.size() +
+            ", hits=" + mHitCount + ", misses=" + mMissCount + ", hitRate=" + hitPercent + "%" +
+            ", evictions=" + mEvictionCount + "]";
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private void remove(String path) {
+        Entry previous = mEntries.remove(path);
+
+        if ( previous != null ) {
+            mBytes -= previous.size;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    private static class Entry {
+
+        final long length;
+
+        final long lastModified;
+
+        final ExifRecord record;
+
+        final int size;
+
+        Entry(long length, long lastModified, ExifRecord record, int size) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.record = record;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The logical values {@link EXIFUtils#getEXIF(java.io.File, Set)} can return, along with the EXIF
+ * entries each one is built from.
+ */
+public enum ExifField {
+
+    LATITUDE("latitude",
+             ExifRecord.TAG_GPS_LATITUDE_REF, ExifRecord.TAG_GPS_LATITUDE,
+             ExifRecord.TAG_GPS_LONGITUDE_REF, ExifRecord.TAG_GPS_LONGITUDE),
+
+    LONGITUDE("longitude",
+              ExifRecord.TAG_GPS_LATITUDE_REF, ExifRecord.TAG_GPS_LATITUDE,
+              ExifRecord.TAG_GPS_LONGITUDE_REF, ExifRecord.TAG_GPS_LONGITUDE),
+
+    ACCURACY("accuracy", ExifRecord.TAG_GPS_H_POSITIONING_ERROR),
+
+    ALTITUDE("altitude", ExifRecord.TAG_GPS_ALTITUDE_REF, ExifRecord.TAG_GPS_ALTITUDE),
+
+    DIRECTION("direction", ExifRecord.TAG_GPS_IMG_DIRECTION),
+
+    TIMESTAMP("timestamp", ExifRecord.TAG_DATE_TIME_ORIGINAL),
+
+    ORIENTATION("orientation", ExifRecord.TAG_ORIENTATION),
+
+    WIDTH("width", ExifRecord.TAG_EXIF_IMAGE_WIDTH),
+
+    HEIGHT("height", ExifRecord.TAG_EXIF_IMAGE_HEIGHT);
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    public final String key;
+
+    private final int[] mTags;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    ExifField(String key, int... tags) {
+        this.key = key;
+        mTags = tags;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the sorted record keys needed to build the given fields, suitable for
+     * {@link ExifReader#readRecord(java.io.File, int[])}.
+     */
+    public static int[] tagsFor(Set<ExifField> fields) {
+        int count = 0;
+        for ( ExifField field : fields ) {
+            count += field.mTags.length;
+        }
+
+        int[] tags = new int[count];
+        int index = 0;
+        for ( ExifField field : fields ) {
+            System.arraycopy(field.mTags, 0, tags, index, field.mTags.length);
+            index += field.mTags.length;
+        }
+
+        Arrays.sort(tags);
+
+        // drop the duplicates latitude and longitude share
+        int unique = 0;
+        for ( int i = 0; i < tags.length; ++i ) {
+            if ( i == 0 || tags[i] != tags[i - 1] ) {
+                tags[unique++] = tags[i];
+            }
+        }
+
+        return Arrays.copyOf(tags, unique);
+    }
+}
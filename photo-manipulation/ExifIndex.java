@@ -0,0 +1,517 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A sidecar file in a photo directory holding the values getEXIF returns for every photo in it,
+ * so they can be shown right after a restart without parsing each photo again. Each photo gets
+ * one fixed width row, rows are sorted by a hash of the photo's path, and the whole file is
+ * loaded with a single read.
+ *
+ * Rows are only used while the photo's length and last modified time still match. Call
+ * {@link #refresh(ExifBatchExtractor, ExifBatchExtractor.Listener)} to re-extract the stale
+ * ones in the background.
+ */
+public class ExifIndex {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    public static final String FILE_NAME = ".exif-index";
+
+    private static final int MAGIC = 0x45584958; // EXIX
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    // path hash, last modified, length, 5 doubles, packed timestamp, 3 ints and the flags
+    private static final int ROW_SIZE = 8 * 3 + 8 * 5 + 8 + 4 * 3 + 4;
+
+    private static final int OFFSET_HASH = 0;
+
+    private static final int OFFSET_LAST_MODIFIED = 8;
+
+    private static final int OFFSET_LENGTH = 16;
+
+    private static final int OFFSET_LATITUDE = 24;
+
+    private static final int OFFSET_LONGITUDE = 32;
+
+    private static final int OFFSET_ALTITUDE = 40;
+
+    private static final int OFFSET_ACCURACY = 48;
+
+    private static final int OFFSET_DIRECTION = 56;
+
+    private static final int OFFSET_TIMESTAMP = 64;
+
+    private static final int OFFSET_ORIENTATION = 72;
+
+    private static final int OFFSET_WIDTH = 76;
+
+    private static final int OFFSET_HEIGHT = 80;
+
+    private static final int OFFSET_FLAGS = 84;
+
+    private static final ExifField[] FIELDS = ExifField.values();
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final File mDirectory;
+
+    private final File mIndexFile;
+
+    // rows read from disk, sorted by hash
+    private long[] mHashes = new long[0];
+
+    private ByteBuffer mRows = ByteBuffer.allocate(0);
+
+    // rows written since the index was loaded, these win over the ones from disk
+    private final HashMap<Long, ByteBuffer> mUpdates = new HashMap<>();
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private ExifIndex(File directory) {
+        mDirectory = directory;
+        mIndexFile = new File(directory, FILE_NAME);
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Loads the index for a directory. A missing or unreadable index file just gives an empty
+     * index, which {@link #refresh} will fill in.
+     */
+    public static ExifIndex load(File directory) {
+        ExifIndex index = new ExifIndex(directory);
+
+        try {
+            index.read();
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+        }
+
+        return index;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the same values {@link EXIFUtils#getEXIF(File)} would, or null if the photo has
+     * no row or its row is stale.
+     */
+    public synchronized HashMap<String, Object> get(File image) {
+        ByteBuffer row = findRow(hash(image));
+
+        if ( row == null || !isCurrent(row, image.length(), image.lastModified()) ) {
+            return null;
+        }
+
+        return toEXIF(row);
+    }
+
+    public synchronized boolean isFresh(File image) {
+        ByteBuffer row = findRow(hash(image));
+        return row != null && isCurrent(row, image.length(), image.lastModified());
+    }
+
+    /**
+     * Stores the values for a photo. The length and last modified time should be the ones the
+     * file had before the values were extracted.
+     */
+    public synchronized void put(File image, long length, long lastModified, HashMap<String, Object> exif) {
+        long hash = hash(image);
+        mUpdates.put(hash, toRow(hash, length, lastModified, exif));
+    }
+
+    /**
+     * Re-extracts every jpeg in the directory that has no row or a stale one on the extractor's
+     * worker threads, then drops rows for photos that are gone and saves the index. The listener
+     * hears about each updated photo and then gets onComplete once the index is saved.
+     */
+    public ExifBatchExtractor.Batch refresh(ExifBatchExtractor extractor, final ExifBatchExtractor.Listener listener) {
+        Collection<File> images = ExifBatchExtractor.listJpegs(mDirectory);
+
+        final HashSet<Long> live = new HashSet<>();
+        final HashMap<File, long[]> stale = new HashMap<>();
+
+        for ( File image : images ) {
+            live.add(hash(image));
+
+            // grab the file state before extracting so a write during the refresh leaves the row stale
+            long length = image.length();
+            long lastModified = image.lastModified();
+
+            synchronized ( this ) {
+                ByteBuffer row = findRow(hash(image));
+
+                if ( row == null || !isCurrent(row, length, lastModified) ) {
+                    stale.put(image, new long[] { length, lastModified });
+                }
+            }
+        }
+
+        return extractor.extract(new ArrayList<>(stale.keySet()), new ExifBatchExtractor.Listener() {
+            @Override
+            public void onExtracted(File image, HashMap<String, Object> exif) {
+                long[] state = stale.get(image);
+                put(image, state[0], state[1], exif);
+
+                listener.onExtracted(image, exif);
+            }
+
+            @Override
+            public void onComplete(int extractedCount) {
+                synchronized ( ExifIndex.this ) {
+                    retain(live);
+
+                    try {
+                        save();
+                    }
+                    catch ( IOException e ) {
+                        FulcrumLogger.log(e);
+                    }
+                }
+
+                listener.onComplete(extractedCount);
+            }
+        });
+    }
+
+    /**
+     * Writes the index next to the photos. The file is written to a temporary file first and
+     * renamed over the old one so a crash mid-write can't leave a torn index behind.
+     */
+    public synchronized void save() throws IOException {
+        merge();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mRows.capacity());
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(mHashes.length);
+        ByteBuffer rows = mRows.duplicate();
+        rows.position(0);
+        buffer.put(rows);
+
+        File tempFile = new File(mDirectory, FILE_NAME + ".tmp");
+
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(buffer.array());
+        }
+        finally {
+            fos.close();
+        }
+
+        if ( !tempFile.renameTo(mIndexFile) ) {
+            throw new IOException("Unable to replace " + mIndexFile);
+        }
+    }
+
+    public synchronized int size() {
+        merge();
+        return mHashes.length;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private void read() throws IOException {
+        if ( !mIndexFile.exists() ) {
+            return;
+        }
+
+        byte[] bytes = new byte[(int) mIndexFile.length()];
+
+        FileInputStream fis = new FileInputStream(mIndexFile);
+        try {
+            int offset = 0;
+            while ( offset < bytes.length ) {
+                int read = fis.read(bytes, offset, bytes.length - offset);
+                if ( read < 0 ) {
+                    break;
+                }
+                offset += read;
+            }
+        }
+        finally {
+            fis.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        if ( bytes.length < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ) {
+            return;
+        }
+
+        int count = buffer.getInt(8);
+        if ( count < 0 || HEADER_SIZE + (long) count * ROW_SIZE > bytes.length ) {
+            return;
+        }
+
+        buffer.position(HEADER_SIZE);
+        buffer.limit(HEADER_SIZE + count * ROW_SIZE);
+        mRows = buffer.slice();
+
+        mHashes = new long[count];
+        for ( int i = 0; i < count; ++i ) {
+            mHashes[i] = mRows.getLong(i * ROW_SIZE + OFFSET_HASH);
+        }
+    }
+
+    private ByteBuffer findRow(long hash) {
+        ByteBuffer row = mUpdates.get(hash);
+
+        if ( row != null ) {
+            return row;
+        }
+
+        int index = Arrays.binarySearch(mHashes, hash);
+
+        if ( index < 0 ) {
+            return null;
+        }
+
+        ByteBuffer duplicate = mRows.duplicate();
+        duplicate.position(index * ROW_SIZE);
+        duplicate.limit(index * ROW_SIZE + ROW_SIZE);
+        return duplicate.slice();
+    }
+
+    /**
+     * Folds the updated rows into the sorted table.
+     */
+    private void merge() {
+        if ( mUpdates.isEmpty() ) {
+            return;
+        }
+
+        int count = 0;
+        for ( long hash : mHashes ) {
+            if ( !mUpdates.containsKey(hash) ) {
+                count++;
+            }
+        }
+
+        long[] hashes = new long[count + mUpdates.size()];
+        int index = 0;
+        for ( long hash : mHashes ) {
+            if ( !mUpdates.containsKey(hash) ) {
+                hashes[index++] = hash;
+            }
+        }
+        for ( long hash : mUpdates.keySet() ) {
+            hashes[index++] = hash;
+        }
+        Arrays.sort(hashes);
+
+        ByteBuffer rows = ByteBuffer.allocate(hashes.length * ROW_SIZE);
+        for ( long hash : hashes ) {
+            ByteBuffer row = findRow(hash).duplicate();
+            row.position(0);
+            rows.put(row);
+        }
+        rows.flip();
+
+        mHashes = hashes;
+        mRows = rows;
+        mUpdates.clear();
+    }
+
+    /**
+     * Drops the rows for any photo not in the given set of hashes.
+     */
+    private void retain(HashSet<Long> live) {
+        merge();
+
+        int count = 0;
+        for ( long hash : mHashes ) {
+            if ( live.contains(hash) ) {
+                count++;
+            }
+        }
+
+        if ( count == mHashes.length ) {
+            return;
+        }
+
+        long[] hashes = new long[count];
+        ByteBuffer rows = ByteBuffer.allocate(count * ROW_SIZE);
+        int index = 0;
+
+        for ( int i = 0; i < mHashes.length; ++i ) {
+            if ( live.contains(mHashes[i]) ) {
+                hashes[index++] = mHashes[i];
+                rows.put(mRows.array(), mRows.arrayOffset() + i * ROW_SIZE, ROW_SIZE);
+            }
+        }
+        rows.flip();
+
+        mHashes = hashes;
+        mRows = rows;
+    }
+
+    private static boolean isCurrent(ByteBuffer row, long length, long lastModified) {
+        return row.getLong(OFFSET_LENGTH) == length && row.getLong(OFFSET_LAST_MODIFIED) == lastModified;
+    }
+
+    private static ByteBuffer toRow(long hash, long length, long lastModified, HashMap<String, Object> exif) {
+        ByteBuffer row = ByteBuffer.allocate(ROW_SIZE);
+        int flags = 0;
+
+        row.putLong(OFFSET_HASH, hash);
+        row.putLong(OFFSET_LAST_MODIFIED, lastModified);
+        row.putLong(OFFSET_LENGTH, length);
+
+        for ( int i = 0; i < FIELDS.length; ++i ) {
+            ExifField field = FIELDS[i];
+            Object value = exif.get(field.key);
+
+            if ( value == null ) {
+                continue;
+            }
+
+            switch ( field ) {
+                case TIMESTAMP:
+                    long packed = packTimestamp((String) value);
+                    if ( packed < 0 ) {
+                        continue;
+                    }
+                    row.putLong(OFFSET_TIMESTAMP, packed);
+                    break;
+                case ORIENTATION:
+                case WIDTH:
+                case HEIGHT:
+                    row.putInt(offsetOf(field), ((Number) value).intValue());
+                    break;
+                default:
+                    row.putDouble(offsetOf(field), ((Number) value).doubleValue());
+            }
+
+            flags |= 1 << i;
+        }
+
+        row.putInt(OFFSET_FLAGS, flags);
+
+        return row;
+    }
+
+    private static HashMap<String, Object> toEXIF(ByteBuffer row) {
+        HashMap<String, Object> exif = new HashMap<>();
+        int flags = row.getInt(OFFSET_FLAGS);
+
+        for ( int i = 0; i < FIELDS.length; ++i ) {
+            if ( (flags & (1 << i)) == 0 ) {
+                continue;
+            }
+
+            ExifField field = FIELDS[i];
+
+            switch ( field ) {
+                case TIMESTAMP:
+                    exif.put(field.key, unpackTimestamp(row.getLong(OFFSET_TIMESTAMP)));
+                    break;
+                case ORIENTATION:
+                case WIDTH:
+                case HEIGHT:
+                    exif.put(field.key, row.getInt(offsetOf(field)));
+                    break;
+                default:
+                    exif.put(field.key, row.getDouble(offsetOf(field)));
+            }
+        }
+
+        return exif;
+    }
+
+    private static int offsetOf(ExifField field) {
+        switch ( field ) {
+            case LATITUDE:
+                return OFFSET_LATITUDE;
+            case LONGITUDE:
+                return OFFSET_LONGITUDE;
+            case ALTITUDE:
+                return OFFSET_ALTITUDE;
+            case ACCURACY:
+                return OFFSET_ACCURACY;
+            case DIRECTION:
+                return OFFSET_DIRECTION;
+            case TIMESTAMP:
+                return OFFSET_TIMESTAMP;
+            case ORIENTATION:
+                return OFFSET_ORIENTATION;
+            case WIDTH:
+                return OFFSET_WIDTH;
+            case HEIGHT:
+            default:
+                return OFFSET_HEIGHT;
+        }
+    }
+
+    /**
+     * Packs a "YYYY/MM/DD HH:MM:SS" timestamp into the number YYYYMMDDHHMMSS, or returns -1 if
+     * it doesn't have exactly 14 digits.
+     */
+    private static long packTimestamp(String timestamp) {
+        long packed = 0;
+        int digits = 0;
+
+        for ( int i = 0; i < timestamp.length(); ++i ) {
+            char c = timestamp.charAt(i);
+
+            if ( c >= '0' && c <= '9' ) {
+                packed = packed * 10 + (c - '0');
+                digits++;
+            }
+        }
+
+        return digits == 14 ? packed : -1;
+    }
+
+    private static String unpackTimestamp(long packed) {
+        String digits = String.valueOf(packed);
+
+        while ( digits.length() < 14 ) {
+            digits = "0" + digits;
+        }
+
+        return digits.substring(0, 4) + "/" + digits.substring(4, 6) + "/" + digits.substring(6, 8) + " " +
+            digits.substring(8, 10) + ":" + digits.substring(10, 12) + ":" + digits.substring(12, 14);
+    }
+
+    /**
+     * 64 bit FNV-1a of the absolute path.
+     */
+    private static long hash(File image) {
+        String path = image.getAbsolutePath();
+        long hash = 0xcbf29ce484222325L;
+
+        for ( int i = 0; i < path.length(); ++i ) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+}
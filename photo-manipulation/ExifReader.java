@@ -0,0 +1,481 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.sanselan.ImageReadException;
+import org.apache.sanselan.SanselanConstants;
+import org.apache.sanselan.formats.tiff.TiffImageMetadata;
+import org.apache.sanselan.formats.tiff.TiffImageParser;
+
+public class ExifReader {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    static final int BUFFER_SIZE = 8192;
+
+    private static final int MARKER_PREFIX = 0xFF;
+
+    static final int MARKER_SOI = 0xFFD8;
+
+    static final int MARKER_EOI = 0xD9;
+
+    static final int MARKER_SOS = 0xDA;
+
+    static final int MARKER_APP1 = 0xE1;
+
+    static final int MARKER_TEM = 0x01;
+
+    static final int MARKER_RST0 = 0xD0;
+
+    static final int MARKER_RST7 = 0xD7;
+
+    static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private static final int TIFF_MAGIC = 42;
+
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private static final int DIRECTORY_COUNT = 5;
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the TIFF structure stored in the EXIF APP1 segment of a jpeg, or null if there
+     * isn't one. Only the segment headers before the image data are read, everything from the
+     * start of scan marker onwards is never touched.
+     */
+    public static byte[] readExifSegment(File jpegImageFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(jpegImageFile), BUFFER_SIZE));
+
+        try {
+            return readExifSegment(in);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public static byte[] readExifSegment(DataInputStream in) throws IOException {
+        if ( in.readUnsignedShort() != MARKER_SOI ) {
+            return null;
+        }
+
+        while ( true ) {
+            int marker = readMarker(in);
+
+            // exif has to come before the image data, so there's no reason to keep going
+            if ( marker == MARKER_SOS || marker == MARKER_EOI ) {
+                return null;
+            }
+
+            // these markers don't have a length or a payload
+            if ( marker == MARKER_TEM || (marker >= MARKER_RST0 && marker <= MARKER_RST7) ) {
+                continue;
+            }
+
+            int length = in.readUnsignedShort() - 2;
+
+            if ( length < 0 ) {
+                return null;
+            }
+
+            // APP1 is also used for XMP, so check the header before reading the whole segment
+            if ( marker == MARKER_APP1 && length >= EXIF_HEADER.length ) {
+                byte[] header = new byte[EXIF_HEADER.length];
+                in.readFully(header);
+                length -= header.length;
+
+                if ( isExifHeader(header) ) {
+                    byte[] tiff = new byte[length];
+                    in.readFully(tiff);
+                    return tiff;
+                }
+            }
+
+            skipFully(in, length);
+        }
+    }
+
+    /**
+     * Reads the EXIF of a jpeg into a typed record, or returns null if the file has none.
+     */
+    public static ExifRecord readRecord(File jpegImageFile) throws IOException {
+        return readRecord(jpegImageFile, null);
+    }
+
+    /**
+     * Same as {@link #readRecord(File)}, but only the entries whose keys are in the sorted
+     * {@code keys} array end up in the record. Directories that none of the keys live in
+     * aren't walked at all. A null array reads everything.
+     */
+    public static ExifRecord readRecord(File jpegImageFile, int[] keys) throws IOException {
+        byte[] tiff = readExifSegment(jpegImageFile);
+
+        if ( tiff == null ) {
+            return null;
+        }
+
+        return parse(ByteBuffer.wrap(tiff), keys);
+    }
+
+    /**
+     * Same as {@link #readRecord(File, int[])}, but the start of the file is memory mapped and
+     * the directories are parsed straight out of the mapping instead of being copied through
+     * stream buffers. {@code window} bytes are mapped first and the mapping is only extended
+     * if the EXIF segment runs past it.
+     *
+     * The record is backed by the mapping, call {@link ExifRecord#detach()} before holding on
+     * to it past the point where the file could be rewritten.
+     */
+    public static ExifRecord readRecordMapped(File jpegImageFile, int[] keys, int window) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(jpegImageFile, "r");
+
+        try {
+            ByteBuffer tiff = mapExifSegment(file.getChannel(), window);
+
+            if ( tiff == null ) {
+                return null;
+            }
+
+            return parse(tiff, keys);
+        }
+        finally {
+            // the mapping stays valid after the channel is closed
+            file.close();
+        }
+    }
+
+    /**
+     * Returns a buffer over the TIFF structure in the EXIF APP1 segment of a jpeg, or null if
+     * there isn't one. The buffer is a slice of a read only mapping of the file.
+     */
+    public static ByteBuffer mapExifSegment(FileChannel channel, int window) throws IOException {
+        MappedWindow mapped = new MappedWindow(channel, window);
+
+        if ( !mapped.ensure(2) || (mapped.buffer.getShort(0) & 0xFFFF) != MARKER_SOI ) {
+            return null;
+        }
+
+        int position = 2;
+
+        while ( true ) {
+            // skip anything up to the marker prefix, then any fill bytes after it
+            do {
+                if ( !mapped.ensure(position + 1) ) {
+                    return null;
+                }
+            }
+            while ( (mapped.buffer.get(position++) & 0xFF) != MARKER_PREFIX );
+
+            int marker;
+            do {
+                if ( !mapped.ensure(position + 1) ) {
+                    return null;
+                }
+                marker = mapped.buffer.get(position++) & 0xFF;
+            }
+            while ( marker == MARKER_PREFIX );
+
+            // exif has to come before the image data, so there's no reason to keep going
+            if ( marker == MARKER_SOS || marker == MARKER_EOI ) {
+                return null;
+            }
+
+            // these markers don't have a length or a payload
+            if ( marker == MARKER_TEM || (marker >= MARKER_RST0 && marker <= MARKER_RST7) ) {
+                continue;
+            }
+
+            if ( !mapped.ensure(position + 2) ) {
+                return null;
+            }
+
+            int length = (mapped.buffer.getShort(position) & 0xFFFF) - 2;
+            position += 2;
+
+            if ( length < 0 ) {
+                return null;
+            }
+
+            if ( marker == MARKER_APP1 && length >= EXIF_HEADER.length ) {
+                if ( !mapped.ensure(position + EXIF_HEADER.length) ) {
+                    return null;
+                }
+
+                if ( isExifHeader(mapped.buffer, position) ) {
+                    if ( !mapped.ensure(position + length) ) {
+                        return null;
+                    }
+
+                    ByteBuffer tiff = mapped.buffer.duplicate();
+                    tiff.limit(position + length);
+                    tiff.position(position + EXIF_HEADER.length);
+                    return tiff.slice();
+                }
+            }
+
+            position += length;
+        }
+    }
+
+    public static ExifRecord parse(ByteBuffer tiff) {
+        return parse(tiff, null);
+    }
+
+    /**
+     * Walks IFD0, the Exif, GPS and Interoperability directories and IFD1 of a TIFF structure.
+     * Only the directory entries are read, the values are left in the buffer and decoded by the
+     * record on demand. Returns null if the buffer doesn't hold a TIFF header.
+     */
+    public static ExifRecord parse(ByteBuffer tiff, int[] keys) {
+        if ( tiff.limit() < 8 ) {
+            return null;
+        }
+
+        int order = tiff.getShort(0);
+        if ( order == 0x4949 ) {
+            tiff.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        else if ( order == 0x4D4D ) {
+            tiff.order(ByteOrder.BIG_ENDIAN);
+        }
+        else {
+            return null;
+        }
+
+        if ( (tiff.getShort(2) & 0xFFFF) != TIFF_MAGIC ) {
+            return null;
+        }
+
+        ExifRecord record = new ExifRecord(tiff, keys);
+        record.addReadBytes(8);
+
+        // the offsets of each directory, filled in as the pointers to them are found
+        int[] offsets = new int[DIRECTORY_COUNT];
+
+        offsets[ExifRecord.DIRECTORY_IFD1] = readDirectory(tiff, record, ExifRecord.DIRECTORY_IFD0, tiff.getInt(4), keys, offsets);
+
+        // the interop pointer lives in the exif directory, so it has to be walked for either
+        if ( wantsDirectory(keys, ExifRecord.DIRECTORY_EXIF) || wantsDirectory(keys, ExifRecord.DIRECTORY_INTEROP) ) {
+            readDirectory(tiff, record, ExifRecord.DIRECTORY_EXIF, offsets[ExifRecord.DIRECTORY_EXIF], keys, offsets);
+        }
+
+        if ( wantsDirectory(keys, ExifRecord.DIRECTORY_GPS) ) {
+            readDirectory(tiff, record, ExifRecord.DIRECTORY_GPS, offsets[ExifRecord.DIRECTORY_GPS], keys, offsets);
+        }
+
+        if ( wantsDirectory(keys, ExifRecord.DIRECTORY_INTEROP) ) {
+            readDirectory(tiff, record, ExifRecord.DIRECTORY_INTEROP, offsets[ExifRecord.DIRECTORY_INTEROP], keys, offsets);
+        }
+
+        if ( wantsDirectory(keys, ExifRecord.DIRECTORY_IFD1) ) {
+            readDirectory(tiff, record, ExifRecord.DIRECTORY_IFD1, offsets[ExifRecord.DIRECTORY_IFD1], keys, offsets);
+        }
+
+        record.finish();
+
+        return record;
+    }
+
+    /**
+     * Has sanselan parse the TIFF structure from an EXIF APP1 segment.
+     */
+    static TiffImageMetadata parseImageMetadata(byte[] tiff) throws IOException, ImageReadException {
+        HashMap<String, Object> params = new HashMap<>();
+        params.put(SanselanConstants.PARAM_KEY_READ_THUMBNAILS, Boolean.TRUE);
+
+        return (TiffImageMetadata) new TiffImageParser().getMetadata(tiff, params);
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Adds the requested entries of one directory to the record, saves any sub directory
+     * pointers it comes across into {@code offsets} and returns the offset of the next
+     * directory in the chain, or 0 if there isn't one.
+     */
+    private static int readDirectory(ByteBuffer tiff, ExifRecord record, int directory, int offset,
+                                     int[] keys, int[] offsets) {
+        int limit = tiff.limit();
+
+        if ( offset < 8 || offset > limit - 2 ) {
+            return 0;
+        }
+
+        int entryCount = tiff.getShort(offset) & 0xFFFF;
+        int entryOffset = offset + 2;
+
+        record.addReadBytes(2 + entryCount * IFD_ENTRY_SIZE + 4);
+
+        for ( int i = 0; i < entryCount; ++i, entryOffset += IFD_ENTRY_SIZE ) {
+            if ( entryOffset + IFD_ENTRY_SIZE > limit ) {
+                return 0;
+            }
+
+            int tag = tiff.getShort(entryOffset) & 0xFFFF;
+            int type = tiff.getShort(entryOffset + 2) & 0xFFFF;
+            long count = tiff.getInt(entryOffset + 4) & 0xFFFFFFFFL;
+
+            int typeSize = ExifRecord.sizeOfType(type);
+            if ( typeSize == 0 ) {
+                continue;
+            }
+
+            // values of 4 bytes or less are stored in the entry itself
+            long byteCount = count * typeSize;
+            long valueOffset = byteCount <= 4 ? entryOffset + 8 : tiff.getInt(entryOffset + 8) & 0xFFFFFFFFL;
+
+            if ( valueOffset + byteCount > limit ) {
+                continue;
+            }
+
+            int key = ExifRecord.key(directory, tag);
+
+            if ( key == ExifRecord.TAG_EXIF_POINTER ) {
+                offsets[ExifRecord.DIRECTORY_EXIF] = tiff.getInt((int) valueOffset);
+            }
+            else if ( key == ExifRecord.TAG_GPS_POINTER ) {
+                offsets[ExifRecord.DIRECTORY_GPS] = tiff.getInt((int) valueOffset);
+            }
+            else if ( key == ExifRecord.TAG_INTEROP_POINTER ) {
+                offsets[ExifRecord.DIRECTORY_INTEROP] = tiff.getInt((int) valueOffset);
+            }
+
+            if ( keys == null || Arrays.binarySearch(keys, key) >= 0 ) {
+                record.add(key, type, (int) count, (int) valueOffset);
+
+                // inline values were already counted with the entry
+                if ( byteCount > 4 ) {
+                    record.addReadBytes((int) byteCount);
+                }
+            }
+        }
+
+        if ( entryOffset + 4 > limit ) {
+            return 0;
+        }
+
+        return tiff.getInt(entryOffset);
+    }
+
+    private static boolean wantsDirectory(int[] keys, int directory) {
+        if ( keys == null ) {
+            return true;
+        }
+
+        for ( int key : keys ) {
+            if ( ExifRecord.directoryOf(key) == directory ) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static int readMarker(DataInputStream in) throws IOException {
+        // skip anything up to the marker prefix, then any fill bytes after it
+        int value = in.readUnsignedByte();
+        while ( value != MARKER_PREFIX ) {
+            value = in.readUnsignedByte();
+        }
+        while ( value == MARKER_PREFIX ) {
+            value = in.readUnsignedByte();
+        }
+
+        return value;
+    }
+
+    static boolean isExifHeader(byte[] header) {
+        for ( int i = 0; i < EXIF_HEADER.length; ++i ) {
+            if ( header[i] != EXIF_HEADER[i] ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isExifHeader(ByteBuffer buffer, int offset) {
+        for ( int i = 0; i < EXIF_HEADER.length; ++i ) {
+            if ( buffer.get(offset + i) != EXIF_HEADER[i] ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static void skipFully(DataInputStream in, int length) throws IOException {
+        while ( length > 0 ) {
+            int skipped = in.skipBytes(length);
+
+            if ( skipped <= 0 ) {
+                throw new EOFException();
+            }
+
+            length -= skipped;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    /**
+     * A read only mapping of the start of a file that can be grown on demand.
+     */
+    private static class MappedWindow {
+
+        private final FileChannel mChannel;
+
+        private final long mFileSize;
+
+        private final int mIncrement;
+
+        MappedByteBuffer buffer;
+
+        MappedWindow(FileChannel channel, int increment) throws IOException {
+            mChannel = channel;
+            mFileSize = channel.size();
+            mIncrement = Math.max(increment, 1);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(mFileSize, mIncrement));
+        }
+
+        /**
+         * Makes sure everything before {@code end} is mapped, returning false if the file
+         * isn't that long.
+         */
+        boolean ensure(long end) throws IOException {
+            if ( end <= buffer.limit() ) {
+                return true;
+            }
+
+            if ( end > mFileSize ) {
+                return false;
+            }
+
+            // grow by at least a whole window so a run of small segments doesn't remap each time
+            long size = Math.min(mFileSize, Math.max(end, (long) buffer.limit() + mIncrement));
+            buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A parsed EXIF block. Tags are keyed by numeric id combined with the directory they live in
+ * (see {@link #key(int, int)}), and values are decoded straight out of the TIFF bytes when
+ * they're asked for, so nothing is boxed or copied unless the caller wants an array back.
+ */
+public class ExifRecord {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    public static final int DIRECTORY_IFD0 = 0;
+
+    public static final int DIRECTORY_EXIF = 1;
+
+    public static final int DIRECTORY_GPS = 2;
+
+    public static final int DIRECTORY_INTEROP = 3;
+
+    public static final int DIRECTORY_IFD1 = 4;
+
+    public static final int TYPE_BYTE = 1;
+
+    public static final int TYPE_ASCII = 2;
+
+    public static final int TYPE_SHORT = 3;
+
+    public static final int TYPE_LONG = 4;
+
+    public static final int TYPE_RATIONAL = 5;
+
+    public static final int TYPE_SBYTE = 6;
+
+    public static final int TYPE_UNDEFINED = 7;
+
+    public static final int TYPE_SSHORT = 8;
+
+    public static final int TYPE_SLONG = 9;
+
+    public static final int TYPE_SRATIONAL = 10;
+
+    public static final int TYPE_FLOAT = 11;
+
+    public static final int TYPE_DOUBLE = 12;
+
+    public static final int TYPE_IFD = 13;
+
+    // IFD0
+    public static final int TAG_IMAGE_WIDTH = key(DIRECTORY_IFD0, 0x0100);
+
+    public static final int TAG_IMAGE_HEIGHT = key(DIRECTORY_IFD0, 0x0101);
+
+    public static final int TAG_MAKE = key(DIRECTORY_IFD0, 0x010F);
+
+    public static final int TAG_MODEL = key(DIRECTORY_IFD0, 0x0110);
+
+    public static final int TAG_ORIENTATION = key(DIRECTORY_IFD0, 0x0112);
+
+    public static final int TAG_EXIF_POINTER = key(DIRECTORY_IFD0, 0x8769);
+
+    public static final int TAG_GPS_POINTER = key(DIRECTORY_IFD0, 0x8825);
+
+    // Exif IFD
+    public static final int TAG_DATE_TIME_ORIGINAL = key(DIRECTORY_EXIF, 0x9003);
+
+    public static final int TAG_MAKER_NOTE = key(DIRECTORY_EXIF, 0x927C);
+
+    public static final int TAG_USER_COMMENT = key(DIRECTORY_EXIF, 0x9286);
+
+    public static final int TAG_EXIF_IMAGE_WIDTH = key(DIRECTORY_EXIF, 0xA002);
+
+    public static final int TAG_EXIF_IMAGE_HEIGHT = key(DIRECTORY_EXIF, 0xA003);
+
+    public static final int TAG_INTEROP_POINTER = key(DIRECTORY_EXIF, 0xA005);
+
+    // GPS IFD
+    public static final int TAG_GPS_LATITUDE_REF = key(DIRECTORY_GPS, 1);
+
+    public static final int TAG_GPS_LATITUDE = key(DIRECTORY_GPS, 2);
+
+    public static final int TAG_GPS_LONGITUDE_REF = key(DIRECTORY_GPS, 3);
+
+    public static final int TAG_GPS_LONGITUDE = key(DIRECTORY_GPS, 4);
+
+    public static final int TAG_GPS_ALTITUDE_REF = key(DIRECTORY_GPS, 5);
+
+    public static final int TAG_GPS_ALTITUDE = key(DIRECTORY_GPS, 6);
+
+    public static final int TAG_GPS_DOP = key(DIRECTORY_GPS, 11);
+
+    public static final int TAG_GPS_IMG_DIRECTION = key(DIRECTORY_GPS, 17);
+
+    public static final int TAG_GPS_H_POSITIONING_ERROR = key(DIRECTORY_GPS, 31);
+
+    // IFD1
+    public static final int TAG_THUMBNAIL_OFFSET = key(DIRECTORY_IFD1, 0x0201);
+
+    public static final int TAG_THUMBNAIL_LENGTH = key(DIRECTORY_IFD1, 0x0202);
+
+    private static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4 };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final ByteBuffer mBuffer;
+
+    private int[] mKeys = new int[INITIAL_CAPACITY];
+
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+
+    private int[] mCounts = new int[INITIAL_CAPACITY];
+
+    private int[] mValueOffsets = new int[INITIAL_CAPACITY];
+
+    private int mSize;
+
+    private final int[] mFilter;
+
+    private int mReadBytes;
+
+    private int mSkippedBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    ExifRecord(ByteBuffer tiff, int[] filter) {
+        mBuffer = tiff;
+        mFilter = filter;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    public static int key(int directory, int tag) {
+        return (directory << 16) | (tag & 0xFFFF);
+    }
+
+    public static int directoryOf(int key) {
+        return key >>> 16;
+    }
+
+    public static int tagOf(int key) {
+        return key & 0xFFFF;
+    }
+
+    public static int sizeOfType(int type) {
+        return type > 0 && type < TYPE_SIZES.length ? TYPE_SIZES[type] : 0;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    public ByteOrder getByteOrder() {
+        return mBuffer.order();
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns true if this record was read with all of the given sorted keys in its filter,
+     * so it can stand in for a read of just those keys. Unfiltered records cover everything.
+     */
+    public boolean covers(int[] keys) {
+        if ( mFilter == null ) {
+            return true;
+        }
+        if ( keys == null ) {
+            return false;
+        }
+
+        for ( int key : keys ) {
+            if ( Arrays.binarySearch(mFilter, key) < 0 ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns true if this record covers every key the other one was read with, so it can
+     * stand in for it.
+     */
+    public boolean covers(ExifRecord other) {
+        return covers(other.mFilter);
+    }
+
+    /**
+     * Returns a record backed by a heap copy of the TIFF bytes if this one is backed by a
+     * direct or memory mapped buffer, otherwise returns this record. A mapped record faults if
+     * the file under it is truncated, so detach before handing it to code that outlives the read.
+     */
+    public ExifRecord detach() {
+        if ( !mBuffer.isDirect() ) {
+            return this;
+        }
+
+        ExifRecord record = new ExifRecord(ByteBuffer.wrap(getTiffBytes()).order(mBuffer.order()), mFilter);
+
+        // the entry table isn't touched once parsing is done, so it can be shared
+        record.mKeys = mKeys;
+        record.mTypes = mTypes;
+        record.mCounts = mCounts;
+        record.mValueOffsets = mValueOffsets;
+        record.mSize = mSize;
+        record.mReadBytes = mReadBytes;
+        record.mSkippedBytes = mSkippedBytes;
+
+        return record;
+    }
+
+    /**
+     * Returns a heap record holding only the values of the entries in this one, packed back
+     * to back, so payloads that were skipped (maker notes, thumbnails, other directories) aren't
+     * kept around. Offsets stored inside values, like the thumbnail offset, no longer point at
+     * anything in a compacted record.
+     */
+    public ExifRecord compact() {
+        int length = 0;
+        for ( int i = 0; i < mSize; ++i ) {
+            length += mCounts[i] * sizeOfType(mTypes[i]);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(mBuffer.order());
+        ExifRecord record = new ExifRecord(buffer, mFilter);
+        ByteBuffer source = mBuffer.duplicate();
+
+        for ( int i = 0; i < mSize; ++i ) {
+            int valueLength = mCounts[i] * sizeOfType(mTypes[i]);
+
+            source.limit(mValueOffsets[i] + valueLength);
+            source.position(mValueOffsets[i]);
+
+            record.add(mKeys[i], mTypes[i], mCounts[i], buffer.position());
+            buffer.put(source);
+        }
+
+        record.mReadBytes = mReadBytes;
+        record.mSkippedBytes = mSkippedBytes;
+
+        return record;
+    }
+
+    /**
+     * The number of bytes in the EXIF segment that were never looked at while parsing: values
+     * of entries left out by the filter, directories that weren't walked, and anything else
+     * the directories don't point at.
+     */
+    public int getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    /**
+     * Roughly how much heap this record holds on to, used to size caches.
+     */
+    public int getSizeInBytes() {
+        return mBuffer.capacity() + mKeys.length * 16 + (mFilter == null ? 0 : mFilter.length * 4) + 64;
+    }
+
+    public int getKeyAt(int index) {
+        return mKeys[index];
+    }
+
+    public boolean has(int key) {
+        return indexOf(key) >= 0;
+    }
+
+    public int getType(int key) {
+        int index = indexOf(key);
+        return index < 0 ? 0 : mTypes[index];
+    }
+
+    public int getCount(int key) {
+        int index = indexOf(key);
+        return index < 0 ? 0 : mCounts[index];
+    }
+
+    public int getInt(int key, int defaultValue) {
+        return getInt(key, 0, defaultValue);
+    }
+
+    public int getInt(int key, int position, int defaultValue) {
+        int index = indexOf(key);
+
+        if ( index < 0 || position >= mCounts[index] ) {
+            return defaultValue;
+        }
+
+        int type = mTypes[index];
+
+        if ( type == TYPE_RATIONAL || type == TYPE_SRATIONAL || type == TYPE_FLOAT || type == TYPE_DOUBLE ) {
+            return (int) readDouble(type, mValueOffsets[index], position);
+        }
+
+        if ( type == TYPE_ASCII ) {
+            return defaultValue;
+        }
+
+        return (int) readLong(type, mValueOffsets[index], position);
+    }
+
+    public double getDouble(int key, double defaultValue) {
+        return getDouble(key, 0, defaultValue);
+    }
+
+    public double getDouble(int key, int position, double defaultValue) {
+        int index = indexOf(key);
+
+        if ( index < 0 || position >= mCounts[index] || mTypes[index] == TYPE_ASCII ) {
+            return defaultValue;
+        }
+
+        return readDouble(mTypes[index], mValueOffsets[index], position);
+    }
+
+    public String getString(int key) {
+        int index = indexOf(key);
+
+        if ( index < 0 || mTypes[index] != TYPE_ASCII ) {
+            return null;
+        }
+
+        int offset = mValueOffsets[index];
+        int length = 0;
+
+        // ascii values are null terminated, and some cameras pad them with extra nulls
+        while ( length < mCounts[index] && mBuffer.get(offset + length) != 0 ) {
+            length++;
+        }
+
+        byte[] bytes = new byte[length];
+        for ( int i = 0; i < length; ++i ) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+
+        return new String(bytes, ASCII);
+    }
+
+    public int[] getIntArray(int key) {
+        int index = indexOf(key);
+
+        if ( index < 0 || mTypes[index] == TYPE_ASCII ) {
+            return null;
+        }
+
+        int type = mTypes[index];
+        int[] values = new int[mCounts[index]];
+
+        for ( int i = 0; i < values.length; ++i ) {
+            if ( type == TYPE_RATIONAL || type == TYPE_SRATIONAL || type == TYPE_FLOAT || type == TYPE_DOUBLE ) {
+                values[i] = (int) readDouble(type, mValueOffsets[index], i);
+            }
+            else {
+                values[i] = (int) readLong(type, mValueOffsets[index], i);
+            }
+        }
+
+        return values;
+    }
+
+    public double[] getRationalArray(int key) {
+        int index = indexOf(key);
+
+        if ( index < 0 || mTypes[index] == TYPE_ASCII ) {
+            return null;
+        }
+
+        double[] values = new double[mCounts[index]];
+
+        for ( int i = 0; i < values.length; ++i ) {
+            values[i] = readDouble(mTypes[index], mValueOffsets[index], i);
+        }
+
+        return values;
+    }
+
+    public byte[] getBytes(int key) {
+        int index = indexOf(key);
+
+        if ( index < 0 ) {
+            return null;
+        }
+
+        byte[] bytes = new byte[mCounts[index] * sizeOfType(mTypes[index])];
+        for ( int i = 0; i < bytes.length; ++i ) {
+            bytes[i] = mBuffer.get(mValueOffsets[index] + i);
+        }
+
+        return bytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // Package Methods
+    // ------------------------------------------------------------------------
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the TIFF bytes the record was parsed from, without copying when possible.
+     */
+    byte[] getTiffBytes() {
+        if ( mBuffer.hasArray() && mBuffer.arrayOffset() == 0 && mBuffer.array().length == mBuffer.limit() ) {
+            return mBuffer.array();
+        }
+
+        byte[] tiff = new byte[mBuffer.limit()];
+        ByteBuffer duplicate = mBuffer.duplicate();
+        duplicate.position(0);
+        duplicate.get(tiff);
+        return tiff;
+    }
+
+    void addReadBytes(int count) {
+        mReadBytes += count;
+    }
+
+    void finish() {
+        mSkippedBytes = Math.max(0, mBuffer.limit() - mReadBytes);
+    }
+
+    void add(int key, int type, int count, int valueOffset) {
+        if ( mSize == mKeys.length ) {
+            int capacity = mSize * 2;
+            mKeys = copyOf(mKeys, capacity);
+            mTypes = copyOf(mTypes, capacity);
+            mCounts = copyOf(mCounts, capacity);
+            mValueOffsets = copyOf(mValueOffsets, capacity);
+        }
+
+        // directories are read in key order and tiff requires ascending tags within a
+        // directory, so this almost never has to shift anything
+        int index = mSize;
+        while ( index > 0 && mKeys[index - 1] >= key ) {
+            index--;
+        }
+
+        // a duplicate tag replaces the earlier one, the same as the old name keyed map did
+        if ( index < mSize && mKeys[index] == key ) {
+            mTypes[index] = type;
+            mCounts[index] = count;
+            mValueOffsets[index] = valueOffset;
+            return;
+        }
+
+        int shift = mSize - index;
+        System.arraycopy(mKeys, index, mKeys, index + 1, shift);
+        System.arraycopy(mTypes, index, mTypes, index + 1, shift);
+        System.arraycopy(mCounts, index, mCounts, index + 1, shift);
+        System.arraycopy(mValueOffsets, index, mValueOffsets, index + 1, shift);
+
+        mKeys[index] = key;
+        mTypes[index] = type;
+        mCounts[index] = count;
+        mValueOffsets[index] = valueOffset;
+        mSize++;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private int indexOf(int key) {
+        int low = 0;
+        int high = mSize - 1;
+
+        while ( low <= high ) {
+            int middle = (low + high) >>> 1;
+            int value = mKeys[middle];
+
+            if ( value < key ) {
+                low = middle + 1;
+            }
+            else if ( value > key ) {
+                high = middle - 1;
+            }
+            else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    private long readLong(int type, int offset, int position) {
+        switch ( type ) {
+            case TYPE_BYTE:
+            case TYPE_UNDEFINED:
+                return mBuffer.get(offset + position) & 0xFF;
+            case TYPE_SBYTE:
+                return mBuffer.get(offset + position);
+            case TYPE_SHORT:
+                return mBuffer.getShort(offset + position * 2) & 0xFFFF;
+            case TYPE_SSHORT:
+                return mBuffer.getShort(offset + position * 2);
+            case TYPE_LONG:
+            case TYPE_IFD:
+                return mBuffer.getInt(offset + position * 4) & 0xFFFFFFFFL;
+            case TYPE_SLONG:
+                return mBuffer.getInt(offset + position * 4);
+            default:
+                return 0;
+        }
+    }
+
+    private double readDouble(int type, int offset, int position) {
+        switch ( type ) {
+            case TYPE_RATIONAL: {
+                long numerator = mBuffer.getInt(offset + position * 8) & 0xFFFFFFFFL;
+                long denominator = mBuffer.getInt(offset + position * 8 + 4) & 0xFFFFFFFFL;
+                return (double) numerator / denominator;
+            }
+            case TYPE_SRATIONAL: {
+                int numerator = mBuffer.getInt(offset + position * 8);
+                int denominator = mBuffer.getInt(offset + position * 8 + 4);
+                return (double) numerator / denominator;
+            }
+            case TYPE_FLOAT:
+                return mBuffer.getFloat(offset + position * 4);
+            case TYPE_DOUBLE:
+                return mBuffer.getDouble(offset + position * 8);
+            default:
+                return readLong(type, offset, position);
+        }
+    }
+
+    private static int[] copyOf(int[] values, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(values, 0, copy, 0, Math.min(values.length, length));
+        return copy;
+    }
+}
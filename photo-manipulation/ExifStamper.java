@@ -0,0 +1,386 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.formats.tiff.constants.ExifTagConstants;
+import org.apache.sanselan.formats.tiff.constants.TagInfo;
+import org.apache.sanselan.formats.tiff.constants.TiffConstants;
+import org.apache.sanselan.formats.tiff.constants.TiffDirectoryConstants;
+import org.apache.sanselan.formats.tiff.constants.TiffFieldTypeConstants;
+import org.apache.sanselan.formats.tiff.write.TiffOutputDirectory;
+import org.apache.sanselan.formats.tiff.write.TiffOutputField;
+import org.apache.sanselan.formats.tiff.write.TiffOutputSet;
+
+/**
+ * Sets the tags every processed photo gets: its size, who took it with what, the photo ID, when
+ * it was taken and where. The values that come from the device and the account are passed in,
+ * so the app and the server side reprocessor stamp photos the same way. Any of them can be null
+ * to keep what's already in the photo.
+ *
+ * A stamper is meant to live for a whole session. Those values are encoded once up front and the
+ * tag definitions and date formatter are shared, so a photo only pays for its own fields.
+ */
+public class ExifStamper {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final String TAG = ExifStamper.class.getSimpleName();
+
+    private static final TagInfo GPS_TAG_ALTITUDE_REF =
+        new TagInfo("GPS Altitude Ref", 5, TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_BYTE, 1,
+                    TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
+
+    // the altitude tag is defined incorrectly in sanselan, it should have length 1, not -1
+    private static final TagInfo GPS_TAG_ALTITUDE =
+        new TagInfo("GPS Altitude", 6, TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_RATIONAL, 1,
+                    TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
+
+    // sanselan doesn't define the H Positioning Error tag, so we manually define it at offset 31
+    // http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/GPS.html
+    // iOS writes to this field and it has some level of standardization
+    private static final TagInfo GPS_TAG_H_POSITIONING_ERROR =
+        new TagInfo("GPS H Positioning Error", 31, TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_RATIONAL, 1,
+                    TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
+
+    // the GPS DOP tag is defined incorrectly in sanselan, it should have length 1, not -1
+    private static final TagInfo GPS_TAG_DOP =
+        new TagInfo("GPS DOP", 11, TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_RATIONAL, 1,
+                    TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
+
+    // SimpleDateFormat isn't thread safe and photos are processed on several threads
+    private static final ThreadLocal<SimpleDateFormat> sDateFormatter = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+        }
+    };
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final String mArtist;
+
+    private final String mSoftware;
+
+    private final String mMake;
+
+    private final String mModel;
+
+    private final byte[] mArtistBytes;
+
+    private final byte[] mSoftwareBytes;
+
+    private final byte[] mMakeBytes;
+
+    private final byte[] mModelBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    /**
+     * @param artist the user ID of the account the photo belongs to
+     * @param software the app's user agent
+     * @param make the device manufacturer, only used if the photo doesn't have one
+     * @param model the device model, only used if the photo doesn't have one
+     */
+    public ExifStamper(String artist, String software, String make, String model) {
+        mArtist = artist;
+        mSoftware = software;
+        mMake = make;
+        mModel = model;
+
+        mArtistBytes = encode(artist);
+        mSoftwareBytes = encode(software);
+        mMakeBytes = encode(make);
+        mModelBytes = encode(model);
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    private static byte[] encode(String value) {
+        if ( value == null ) {
+            return null;
+        }
+
+        try {
+            return TiffFieldTypeConstants.FIELD_TYPE_ASCII.writeData(value, TiffConstants.DEFAULT_TIFF_BYTE_ORDER);
+        }
+        catch ( ImageWriteException e ) {
+            FulcrumLogger.log(TAG, "Could not encode exif value " + value);
+            return null;
+        }
+    }
+
+    /**
+     * A new field around bytes encoded up front. Ascii doesn't depend on the byte order, and the
+     * bytes are only read when the exif is written, so every photo can share them.
+     */
+    private static TiffOutputField asciiField(TagInfo tag, byte[] bytes) {
+        return new TiffOutputField(tag.tag, tag, TiffFieldTypeConstants.FIELD_TYPE_ASCII, bytes.length, bytes);
+    }
+
+    private static Double[] toDMS(double input) {
+        double degrees, minutes, seconds, remainder;
+
+        degrees = (double) ((long) input);
+
+        remainder = input % 1.0;
+        remainder *= 60.0;
+
+        minutes = (double) ((long) remainder);
+
+        remainder %= 1.0;
+
+        seconds = remainder * 60.0;
+
+        return new Double[] {
+            degrees, minutes, seconds
+        };
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Whether this stamper writes the given values, so it can keep being used.
+     */
+    public boolean isFor(String artist, String software, String make, String model) {
+        return equals(mArtist, artist) && equals(mSoftware, software) &&
+            equals(mMake, make) && equals(mModel, model);
+    }
+
+    public void writeExifInformation(TiffOutputSet exif, int width, int height, String photoID)
+        throws ImageWriteException {
+        // store the EXIF width/height
+        TiffOutputDirectory exifDirectory = exif.getOrCreateExifDirectory();
+
+        if ( exifDirectory != null ) {
+            TiffOutputField field;
+
+            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH, exif.byteOrder, width);
+            exifDirectory.removeField(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH);
+            exifDirectory.add(field);
+
+            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH, exif.byteOrder, height);
+            exifDirectory.removeField(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH);
+            exifDirectory.add(field);
+
+            String now = null;
+
+            if ( exifDirectory.findField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL) == null ) {
+                now = now();
+
+                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL, exif.byteOrder, now);
+                exifDirectory.removeField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
+                exifDirectory.add(field);
+            }
+
+            if ( exifDirectory.findField(ExifTagConstants.EXIF_TAG_CREATE_DATE) == null ) {
+                if ( now == null ) {
+                    now = now();
+                }
+
+                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_CREATE_DATE, exif.byteOrder, now);
+                exifDirectory.removeField(ExifTagConstants.EXIF_TAG_CREATE_DATE);
+                exifDirectory.add(field);
+            }
+        }
+
+        // store the regular width/height (the width+height is stored twice in the EXIF under 2 different tags)
+        TiffOutputDirectory rootDirectory = exif.getOrCreateRootDirectory();
+
+        if ( rootDirectory != null ) {
+            TiffOutputField field;
+
+            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_WIDTH_IFD0, exif.byteOrder, width);
+            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_WIDTH_IFD0);
+            rootDirectory.add(field);
+
+            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_HEIGHT_IFD0, exif.byteOrder, height);
+            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_HEIGHT_IFD0);
+            rootDirectory.add(field);
+
+            if ( mArtistBytes != null ) {
+                field = asciiField(ExifTagConstants.EXIF_TAG_ARTIST, mArtistBytes);
+                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_ARTIST);
+                rootDirectory.add(field);
+            }
+
+            if ( mSoftwareBytes != null ) {
+                field = asciiField(ExifTagConstants.EXIF_TAG_SOFTWARE, mSoftwareBytes);
+                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_SOFTWARE);
+                rootDirectory.add(field);
+            }
+
+            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_DESCRIPTION, exif.byteOrder, photoID);
+            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_DESCRIPTION);
+            rootDirectory.add(field);
+
+            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_UNIQUE_ID, exif.byteOrder, photoID);
+            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_UNIQUE_ID);
+            rootDirectory.add(field);
+
+            if ( mMakeBytes != null && rootDirectory.findField(ExifTagConstants.EXIF_TAG_MAKE) == null ) {
+                field = asciiField(ExifTagConstants.EXIF_TAG_MAKE, mMakeBytes);
+                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_MAKE);
+                rootDirectory.add(field);
+            }
+
+            if ( mModelBytes != null && rootDirectory.findField(ExifTagConstants.EXIF_TAG_MODEL) == null ) {
+                field = asciiField(ExifTagConstants.EXIF_TAG_MODEL, mModelBytes);
+                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_MODEL);
+                rootDirectory.add(field);
+            }
+
+            if ( rootDirectory.findField(ExifTagConstants.EXIF_TAG_DOCUMENT_NAME) == null ) {
+                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_DOCUMENT_NAME, exif.byteOrder, DateUtils.getTimestampFormatter().format(new Date()));
+                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_DOCUMENT_NAME);
+                rootDirectory.add(field);
+            }
+        }
+    }
+
+    /**
+     * Adds the location unless the photo already has one, along with the altitude and accuracy
+     * if they're known. A null position does nothing.
+     */
+    public void writeExifLocation(TiffOutputSet exif, Position position) {
+        // if the exif already has location or we have no location to set, exit
+        if ( position == null ) {
+            return;
+        }
+
+        try {
+            TiffOutputDirectory gps = exif.getOrCreateGPSDirectory();
+
+            boolean hasLocation = gps.findField(TiffConstants.GPS_TAG_GPS_LATITUDE_REF) != null &&
+                gps.findField(TiffConstants.GPS_TAG_GPS_LATITUDE) != null &&
+                gps.findField(TiffConstants.GPS_TAG_GPS_LONGITUDE_REF) != null &&
+                gps.findField(TiffConstants.GPS_TAG_GPS_LONGITUDE) != null;
+
+            TiffOutputField field;
+
+            if ( !hasLocation ) {
+                double longitude = position.longitude;
+                double latitude = position.latitude;
+
+                String longitudeRef = longitude < 0.0 ? "W" : "E";
+                longitude = Math.abs(longitude);
+
+                String latitudeRef = latitude < 0.0 ? "S" : "N";
+                latitude = Math.abs(latitude);
+
+                // add longitude ref
+                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LONGITUDE_REF, exif.byteOrder, longitudeRef);
+                gps.removeField(TiffConstants.GPS_TAG_GPS_LONGITUDE_REF);
+                gps.add(field);
+
+                // add latitude ref
+                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LATITUDE_REF, exif.byteOrder, latitudeRef);
+                gps.removeField(TiffConstants.GPS_TAG_GPS_LATITUDE_REF);
+                gps.add(field);
+
+                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LONGITUDE, exif.byteOrder, toDMS(longitude));
+                gps.removeField(TiffConstants.GPS_TAG_GPS_LONGITUDE);
+                gps.add(field);
+
+                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LATITUDE, exif.byteOrder, toDMS(latitude));
+                gps.removeField(TiffConstants.GPS_TAG_GPS_LATITUDE);
+                gps.add(field);
+            }
+
+            if ( position.altitude != null ) {
+                double altitude = position.altitude;
+
+                int altitudeRef = altitude < 0.0 ?
+                    TiffConstants.GPS_TAG_GPS_ALTITUDE_REF_VALUE_BELOW_SEA_LEVEL :
+                    TiffConstants.GPS_TAG_GPS_ALTITUDE_REF_VALUE_ABOVE_SEA_LEVEL;
+
+                altitude = Math.abs(altitude);
+
+                // add altitude ref
+                field = TiffOutputField.create(GPS_TAG_ALTITUDE_REF, exif.byteOrder, (byte) altitudeRef);
+                gps.removeField(GPS_TAG_ALTITUDE_REF);
+                gps.add(field);
+
+                // add altitude
+                field = TiffOutputField.create(GPS_TAG_ALTITUDE, exif.byteOrder, new Double[] {
+                    altitude
+                });
+                gps.removeField(GPS_TAG_ALTITUDE);
+                gps.add(field);
+            }
+
+            if ( position.accuracy != null ) {
+                double accuracy = position.accuracy;
+
+                Double[] value = new Double[] { accuracy };
+
+                // add accuracy
+                field = TiffOutputField.create(GPS_TAG_H_POSITIONING_ERROR, exif.byteOrder, value);
+                gps.removeField(GPS_TAG_H_POSITIONING_ERROR);
+                gps.add(field);
+
+                // add accuracy to the DOP field too
+                field = TiffOutputField.create(GPS_TAG_DOP, exif.byteOrder, value);
+                gps.removeField(GPS_TAG_DOP);
+                gps.add(field);
+            }
+        }
+        catch ( ImageWriteException e ) {
+            FulcrumLogger.log(e);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private static String now() {
+        SimpleDateFormat formatter = sDateFormatter.get();
+        // follow the device if its time zone changes mid session
+        formatter.setTimeZone(TimeZone.getDefault());
+
+        return formatter.format(new Date());
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    /**
+     * Where a photo was taken. The altitude and accuracy are null when they aren't known.
+     */
+    public static class Position {
+
+        public final double latitude;
+
+        public final double longitude;
+
+        public final Double altitude;
+
+        public final Double accuracy;
+
+        public Position(double latitude, double longitude, Double altitude, Double accuracy) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.altitude = altitude;
+            this.accuracy = accuracy;
+        }
+    }
+}
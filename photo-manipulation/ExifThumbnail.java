@@ -0,0 +1,169 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+
+/**
+ * The small jpeg most cameras embed in IFD1 of the EXIF. It's usually around 160px wide and
+ * a few KB, so it can be shown as a preview without decoding the full image.
+ */
+public class ExifThumbnail {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * The record keys needed to find the thumbnail, sorted.
+     */
+    static final int[] KEYS = {
+        ExifRecord.TAG_ORIENTATION, ExifRecord.TAG_THUMBNAIL_OFFSET, ExifRecord.TAG_THUMBNAIL_LENGTH
+    };
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final byte[] mBytes;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mOrientation;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private ExifThumbnail(byte[] bytes, int width, int height, int orientation) {
+        mBytes = bytes;
+        mWidth = width;
+        mHeight = height;
+        mOrientation = orientation;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Pulls the thumbnail out of a record read with at least {@link #KEYS}. Returns null if
+     * there isn't one or it doesn't look like a jpeg.
+     */
+    public static ExifThumbnail fromRecord(ExifRecord record) {
+        if ( record == null ) {
+            return null;
+        }
+
+        ByteBuffer tiff = record.getBuffer();
+
+        // the offset is relative to the start of the TIFF header, same as every other offset
+        int offset = record.getInt(ExifRecord.TAG_THUMBNAIL_OFFSET, 0);
+        int length = record.getInt(ExifRecord.TAG_THUMBNAIL_LENGTH, 0);
+
+        if ( offset <= 0 || length < 4 || (long) offset + length > tiff.limit() ) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        ByteBuffer duplicate = tiff.duplicate();
+        duplicate.position(offset);
+        duplicate.get(bytes);
+
+        int[] size = readJpegSize(bytes);
+
+        if ( size == null ) {
+            return null;
+        }
+
+        int orientation = record.getInt(ExifRecord.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+
+        return new ExifThumbnail(bytes, size[0], size[1], orientation);
+    }
+
+    /**
+     * Reads the width and height from the start of frame marker of a jpeg without decoding
+     * it, or returns null if there isn't one.
+     */
+    static int[] readJpegSize(byte[] jpeg) {
+        if ( jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8 ) {
+            return null;
+        }
+
+        int position = 2;
+
+        while ( position + 4 <= jpeg.length ) {
+            if ( (jpeg[position] & 0xFF) != 0xFF ) {
+                return null;
+            }
+
+            int marker = jpeg[position + 1] & 0xFF;
+
+            // fill bytes
+            if ( marker == 0xFF ) {
+                position++;
+                continue;
+            }
+
+            int length = ((jpeg[position + 2] & 0xFF) << 8) | (jpeg[position + 3] & 0xFF);
+
+            // SOF0 to SOF15, except DHT, JPG and DAC which share the range
+            if ( marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC ) {
+                if ( position + 9 > jpeg.length ) {
+                    return null;
+                }
+
+                int height = ((jpeg[position + 5] & 0xFF) << 8) | (jpeg[position + 6] & 0xFF);
+                int width = ((jpeg[position + 7] & 0xFF) << 8) | (jpeg[position + 8] & 0xFF);
+
+                return new int[] { width, height };
+            }
+
+            if ( marker == 0xDA || marker == 0xD9 ) {
+                return null;
+            }
+
+            position += 2 + length;
+        }
+
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * The encoded jpeg bytes of the thumbnail.
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * The orientation of the main image, which the thumbnail shares.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public Bitmap decode() {
+        return decode(null);
+    }
+
+    public Bitmap decode(BitmapFactory.Options options) {
+        return BitmapFactory.decodeByteArray(mBytes, 0, mBytes.length, options);
+    }
+}
@@ -0,0 +1,135 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import androidx.heifwriter.HeifWriter;
+
+/**
+ * An {@link AndroidImageCodec} that compresses to HEIF with HeifWriter, on the device's hardware
+ * HEVC encoder. Bitmap.compress can't write HEIF and HEIF's boxes can't have exif spliced in
+ * afterwards, so the exif is set on the codec and written with the image. HeifWriter only
+ * writes to files, so each compress goes through a temp file. Needs Android 9, see
+ * {@link #isSupported}.
+ */
+public class HeifImageCodec extends AndroidImageCodec {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private static final long ENCODE_TIMEOUT_MILLIS = 30 * 1000;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final File mTempDirectory;
+
+    private byte[] mExif;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public HeifImageCodec(BitmapPool pool, File tempDirectory) {
+        // compress and getMimeType are replaced, so there's no CompressFormat
+        super(null, pool);
+        mTempDirectory = tempDirectory;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * The exif to write with every image from now on, as a tiff block like
+     * {@link ImageFileWriter#encodeTiff} makes, or null for none.
+     */
+    public void setExif(byte[] tiff) {
+        if ( tiff == null ) {
+            mExif = null;
+            return;
+        }
+
+        // HeifWriter wants the block jpegs use, with the Exif header
+        mExif = new byte[EXIF_HEADER.length + tiff.length];
+        System.arraycopy(EXIF_HEADER, 0, mExif, 0, EXIF_HEADER.length);
+        System.arraycopy(tiff, 0, mExif, EXIF_HEADER.length, tiff.length);
+    }
+
+    @Override
+    public String getMimeType() {
+        return ImageHeaderProbe.MIME_TYPE_HEIF;
+    }
+
+    @Override
+    public void compress(Bitmap image, int quality, OutputStream output) throws IOException {
+        File tempFile = File.createTempFile("photo", ".heic", mTempDirectory);
+
+        try {
+            HeifWriter writer = new HeifWriter.Builder(tempFile.getAbsolutePath(), image.getWidth(), image.getHeight(),
+                                                       HeifWriter.INPUT_MODE_BITMAP)
+                .setQuality(Math.max(0, Math.min(100, quality)))
+                .setMaxImages(1)
+                .build();
+
+            try {
+                writer.start();
+                writer.addBitmap(image);
+
+                if ( mExif != null ) {
+                    writer.addExifData(0, mExif, 0, mExif.length);
+                }
+
+                writer.stop(ENCODE_TIMEOUT_MILLIS);
+            }
+            catch ( Exception e ) {
+                throw new IOException("Could not compress bitmap as heif", e);
+            }
+            finally {
+                writer.close();
+            }
+
+            copy(tempFile, output);
+        }
+        finally {
+            tempFile.delete();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private static void copy(File file, OutputStream output) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+
+            while ( (read = input.read(buffer)) > 0 ) {
+                output.write(buffer, 0, read);
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+}
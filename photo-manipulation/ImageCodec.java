@@ -0,0 +1,45 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The decode, scale and compress steps of the resize pipeline, without tying it to a platform's
+ * image type. {@link AndroidImageCodec} works on Bitmaps in the app. The server side
+ * reprocessor uses an ImageIO implementation on BufferedImages.
+ *
+ * @param <I> the decoded image type
+ */
+public interface ImageCodec<I> {
+
+    /**
+     * Decodes the photo scaled to the target, which is given in the stored (not yet rotated)
+     * orientation, then applies the orientation. Returns null if the photo can't be decoded.
+     */
+    I decode(String path, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight, int orientation)
+        throws IOException;
+
+    /**
+     * A filtered copy of the image at the new size. The original is left alone.
+     */
+    I scale(I image, int width, int height);
+
+    int getWidth(I image);
+
+    int getHeight(I image);
+
+    /**
+     * The mime type {@link #compress} writes, e.g. image/jpeg.
+     */
+    String getMimeType();
+
+    /**
+     * Compresses the image at the given 1 to 100 quality. Formats without a quality ignore it.
+     */
+    void compress(I image, int quality, OutputStream output) throws IOException;
+
+    /**
+     * Called once an image is no longer used, so its memory can be reused or freed.
+     */
+    void release(I image);
+}
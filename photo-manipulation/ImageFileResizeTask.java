@@ -4,22 +4,13 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.util.Arrays;
+import java.util.concurrent.Future;
 
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.formats.jpeg.exifRewrite.ExifRewriter;
-import org.apache.sanselan.formats.tiff.TiffImageMetadata;
-import org.apache.sanselan.formats.tiff.constants.ExifTagConstants;
-import org.apache.sanselan.formats.tiff.constants.TagInfo;
 import org.apache.sanselan.formats.tiff.constants.TiffConstants;
-import org.apache.sanselan.formats.tiff.constants.TiffDirectoryConstants;
-import org.apache.sanselan.formats.tiff.constants.TiffFieldTypeConstants;
-import org.apache.sanselan.formats.tiff.write.TiffOutputDirectory;
-import org.apache.sanselan.formats.tiff.write.TiffOutputField;
 import org.apache.sanselan.formats.tiff.write.TiffOutputSet;
 
 import android.content.Context;
@@ -35,8 +26,6 @@ import android.os.Build;
 import com.spatialnetworks.fulcrum.model.Account;
 import com.spatialnetworks.fulcrum.settings.UserSettings;
 
-import com.squareup.picasso.Picasso;
-
 public class ImageFileResizeTask extends AsyncTask<Void, Void, Void> {
 
     // ------------------------------------------------------------------------
@@ -45,42 +34,106 @@ public class ImageFileResizeTask extends AsyncTask<Void, Void, Void> {
 
     private static final String TAG = ImageFileResizeTask.class.getSimpleName();
 
+    private static volatile PhotoMetrics.Sink sMetricsSink;
+
+    /**
+     * Shared by every task until the account or user agent changes, so the constant exif is only
+     * encoded once a session.
+     */
+    private static ExifStamper sExifStamper;
+
+    private static ProcessedPhotoLedger sLedger;
+
+    private static volatile PhotoFormat sOutputFormat;
+
     // ------------------------------------------------------------------------
     // Instance Variables
     // ------------------------------------------------------------------------
 
     private final Context mContext;
 
-    private final Uri mFileUri;
-
     private final String mFilePath;
 
     private final String mPhotoID;
 
     private final Location mLocation;
 
-    private final int mOriginalHeight;
+    private int mOriginalHeight;
 
-    private final int mOriginalWidth;
+    private int mOriginalWidth;
 
     private int mNewHeight;
 
     private int mNewWidth;
 
+    /**
+     * The largest dimension the photo is resized to, 0 for native.
+     */
+    private final int mLargestDimension;
+
     private final CompressFormat mCompressFormat;
 
+    /**
+     * What a jpeg, or a photo the app already wrote as WebP or HEIF, is written out as. Null for
+     * other photos, which keep their format.
+     */
+    private final PhotoFormat mOutputFormat;
+
+    private final String mOutputMimeType;
+
+    private final CompressionTarget mCompressionTarget;
+
+    /**
+     * The largest dimension of each extra rendition, largest first.
+     */
+    private int[] mRenditions = new int[0];
+
+    private long mPeakBitmapBytes;
+
+    /**
+     * The photo's header, read when the task is created. It's only read again when the task
+     * runs if the photo was rewritten in between, by the work queued before it for one.
+     */
+    private ImageHeaderProbe mHeader;
+
+    /**
+     * The photo's length and modified time when its header was read, to tell if it's changed.
+     */
+    private long mHeaderLength;
+
+    private long mHeaderModified;
+
+    /**
+     * Null unless a metrics sink was installed when the task was created.
+     */
+    private final PhotoMetrics mMetrics;
+
+    private final PhotoMetrics.Sink mMetricsSink;
+
     // ------------------------------------------------------------------------
     // Constructors
     // ------------------------------------------------------------------------
 
     public ImageFileResizeTask(Context context, Uri sourceUri, Location location,
                                String photoID, String overrideQuality) {
+        this(context, sourceUri, location, photoID, overrideQuality, null);
+    }
+
+    /**
+     * @param overrideCompression a form's compression setting, like "85" or "500kb:70", see
+     *                            {@link CompressionTarget#parse}. Photos are compressed at
+     *                            quality 100 without one.
+     */
+    public ImageFileResizeTask(Context context, Uri sourceUri, Location location,
+                               String photoID, String overrideQuality, String overrideCompression) {
         mContext = context;
-        mFileUri = sourceUri;
         mFilePath = sourceUri.getPath();
         mLocation = location;
         mPhotoID = photoID;
 
+        mMetricsSink = sMetricsSink;
+        mMetrics = mMetricsSink != null ? new PhotoMetrics(photoID) : null;
+
         // is the app's quality setting overriden by a data event?
         Integer overrideDimension = null;
         if ( overrideQuality != null ) {
@@ -96,13 +149,6 @@ public class ImageFileResizeTask extends AsyncTask<Void, Void, Void> {
             }
         }
 
-        // determine the image's original height and width
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(mFilePath, options);
-        mOriginalWidth = options.outWidth;
-        mOriginalHeight = options.outHeight;
-
         // determine what the new largest dimension should be based on user's setting
         float largestDimension;
         if ( overrideDimension != null ) {
@@ -125,24 +171,91 @@ public class ImageFileResizeTask extends AsyncTask<Void, Void, Void> {
             }
         }
 
-        // determine the scaling factor for the dimensions
-        float scaleFactor;
-        if ( largestDimension == 0 ) {
-            scaleFactor = 1;
-        }
-        else if ( mOriginalHeight >= mOriginalWidth ) {
-            scaleFactor = largestDimension / mOriginalHeight;
+        mLargestDimension = Math.round(largestDimension);
+
+        // size the photo and find its type for the compression format, the header's kept for when the task runs
+        long start = startStage();
+        BitmapFactory.Options options = readHeader();
+
+        endStage(PhotoMetrics.Stage.PROBE, start);
+
+        // get the compression format used for saving the resized file. Jpegs are written as the
+        // app's output format instead, and so are webps and heifs, which are usually jpegs the app
+        // already converted coming back, so they're written with the same settings as the first time
+        CompressFormat compressFormat = BitmapUtils.getCompressFormat(mFilePath, options);
+
+        if ( compressFormat == CompressFormat.JPEG || ImageHeaderProbe.MIME_TYPE_WEBP.equals(options.outMimeType) ||
+            ImageHeaderProbe.MIME_TYPE_HEIF.equals(options.outMimeType) ) {
+            PhotoFormat outputFormat = sOutputFormat != null ? sOutputFormat : PhotoFormat.JPEG;
+
+            if ( outputFormat == PhotoFormat.HEIF && !HeifImageCodec.isSupported() ) {
+                outputFormat = PhotoFormat.WEBP;
+            }
+
+            if ( outputFormat == PhotoFormat.WEBP ) {
+                compressFormat = AndroidImageCodec.getLossyWebpFormat();
+            }
+            else {
+                // heif is compressed by its own codec and ignores this
+                compressFormat = CompressFormat.JPEG;
+            }
+
+            mOutputFormat = outputFormat;
         }
         else {
-            scaleFactor = largestDimension / mOriginalWidth;
+            mOutputFormat = null;
         }
 
-        // determine the new dimensions based on the calculated scale factor
-        mNewHeight = Math.round(mOriginalHeight * scaleFactor);
-        mNewWidth = Math.round(mOriginalWidth * scaleFactor);
+        mCompressFormat = compressFormat;
+        mOutputMimeType = mOutputFormat != null ?
+            mOutputFormat.getMimeType() : AndroidImageCodec.getMimeType(compressFormat);
+
+        // is the quality (or byte budget) overriden by a data event?
+        CompressionTarget compressionTarget = CompressionTarget.parse(overrideCompression);
+        if ( compressionTarget == null ) {
+            compressionTarget = mOutputFormat != null ?
+                CompressionTarget.fixed(mOutputFormat.getDefaultQuality()) : CompressionTarget.DEFAULT;
+        }
+        mCompressionTarget = compressionTarget;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Collects {@link PhotoMetrics} for every task created from now on and hands them to the
+     * sink, e.g. a {@link PhotoMetricsHistogram}. Null stops collecting, tasks without a sink
+     * don't even read the clock.
+     */
+    public static void setMetricsSink(PhotoMetrics.Sink sink) {
+        sMetricsSink = sink;
+    }
+
+    /**
+     * The format jpegs are written out as by every task created from now on, the app's setting
+     * picked by an admin. Null keeps them jpegs. The photo keeps its path, see
+     * {@link #getOutputMimeType}.
+     */
+    public static void setOutputFormat(PhotoFormat format) {
+        sOutputFormat = format;
+    }
+
+    /**
+     * Where the rendition with the given largest dimension is written, the photo's name with
+     * the dimension added, e.g. {@code photo_480.jpg}.
+     */
+    public static File getRenditionFile(String filePath, int largestDimension) {
+        File file = new File(filePath);
+        String name = file.getName();
+        int extension = name.lastIndexOf('.');
+
+        if ( extension <= 0 ) {
+            return new File(file.getParentFile(), name + "_" + largestDimension);
+        }
 
-        // get the compression format used for saving the resized file
-        mCompressFormat = BitmapUtils.getCompressFormat(mFilePath, options);
+        return new File(file.getParentFile(),
+                        name.substring(0, extension) + "_" + largestDimension + name.substring(extension));
     }
 
     // ------------------------------------------------------------------------
@@ -151,323 +264,638 @@ public class ImageFileResizeTask extends AsyncTask<Void, Void, Void> {
 
     @Override
     protected Void doInBackground(Void... args) {
+        process();
+        return null;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Queues the resize on a photo queue instead of the shared AsyncTask executor. If the photo
+     * is already being resized the same way, the listener waits on that instead. A resize queued
+     * behind one that's running sizes the photo from what that one wrote. Call it after
+     * {@link #setRenditions}, they're part of what makes two resizes the same.
+     */
+    public Future<Void> submit(PhotoProcessingQueue queue, PhotoProcessingQueue.Priority priority,
+                               PhotoProcessingQueue.Listener listener) {
+        return queue.submit(mPhotoID, mFilePath, getParameters(), priority, new Runnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }, listener);
+    }
+
+    /**
+     * Also writes a smaller copy of the photo for each of the given largest dimensions, like
+     * 480 and 160 for previews and thumbnails, next to it. They come from the same decode as
+     * the resize, each scaled down from the next larger one. See {@link #getRenditionFile}.
+     */
+    public void setRenditions(int... largestDimensions) {
+        int[] renditions = new int[largestDimensions.length];
+        int count = 0;
+
+        for ( int dimension : largestDimensions ) {
+            if ( dimension > 0 ) {
+                renditions[count++] = dimension;
+            }
+        }
+
+        renditions = Arrays.copyOf(renditions, count);
+        Arrays.sort(renditions);
+
+        // largest first, without repeats
+        int[] descending = new int[count];
+        int unique = 0;
+        for ( int i = count - 1; i >= 0; --i ) {
+            if ( unique == 0 || descending[unique - 1] != renditions[i] ) {
+                descending[unique++] = renditions[i];
+            }
+        }
+
+        mRenditions = Arrays.copyOf(descending, unique);
+    }
+
+    /**
+     * What the photo is written as, which for jpegs written out as WebP or HEIF no longer
+     * matches its file extension.
+     */
+    public String getOutputMimeType() {
+        return mOutputMimeType;
+    }
+
+    /**
+     * The most bitmap memory the resize held at once, 0 if it didn't need to decode the photo.
+     */
+    public long getPeakBitmapBytes() {
+        return mPeakBitmapBytes;
+    }
+
+    /**
+     * Resizes the photo and rewrites its EXIF on the calling thread.
+     */
+    public void process() {
+        if ( mMetrics == null ) {
+            processPhoto();
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+            processPhoto();
+        }
+        finally {
+            // the probe is the only stage timed in the constructor, outside of processPhoto
+            mMetrics.setTotalNanos(System.nanoTime() - start + mMetrics.getStageNanos(PhotoMetrics.Stage.PROBE));
+            mMetrics.setPeakBitmapBytes(mPeakBitmapBytes);
+            mMetricsSink.onPhotoProcessed(mMetrics);
+        }
+    }
+
+    /**
+     * The metrics for this photo, null if no sink was installed when the task was created.
+     */
+    public PhotoMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Skips photos this pipeline already wrote with the same settings, like re-imports and
+     * retries, so they aren't decoded and re-encoded again. One written for another photo ID
+     * only gets its exif updated.
+     */
+    private void processPhoto() {
         File sourceFile = new File(mFilePath);
+        ProcessedPhotoLedger ledger = getLedger();
+        String parameters = getParameters();
 
-        // pull the exif from the image before resizing
-        TiffOutputSet exif = getSanselanOutputSet(sourceFile, TiffConstants.DEFAULT_TIFF_BYTE_ORDER);
+        long start = startStage();
+        ProcessedPhotoLedger.Match match = ProcessedPhotoLedger.Match.NONE;
 
-        // determine the orientation if there is one (if it's a jpeg, mainly from a samsung device)
-        int orientation = EXIFUtils.getOrientation(mFilePath);
+        try {
+            match = ledger.find(ProcessedPhotoLedger.hash(sourceFile), sourceFile.length(), parameters, mPhotoID);
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+        }
 
-        // if a resize is required, or a rotate
-        if ( mNewHeight != mOriginalHeight || mNewWidth != mOriginalWidth || orientation != 0 ) {
-            try {
-                /*
-                 * we had to move to Picasso 2.5.3-SNAPSHOT as some devices were getting IOException:
-                 * Cannot Reset when doing the resize a few lines down. The SNAPSHOT versions cause
-                 * photos to be stretched on devices with an orientation value (like Samsung S7), we believe
-                 * it's because code was added that swaps the width and height when resizing, which wasn't
-                 * needed and is handled elsewhere in Picasso. To counter that, we have to swap the
-                 * width and height before resizing if there's an orientation of 90 or 270. This Picasso
-                 * github issue has more info: https://github.com/square/picasso/issues/1555
-                 */
-                if ( orientation == ExifInterface.ORIENTATION_ROTATE_90 ||
-                    orientation == ExifInterface.ORIENTATION_ROTATE_270 ) {
-                    int tmpNewHeight = mNewHeight;
-                    mNewHeight = mNewWidth;
-                    mNewWidth = tmpNewHeight;
-                }
+        endStage(PhotoMetrics.Stage.HASH, start);
 
-                // size and get the image
-                Bitmap bitmap = Picasso.with(mContext).load(mFileUri).resize(mNewWidth, mNewHeight).onlyScaleDown().get();
-
-                /*
-                 * Some camera apps (some Samsungs) will return the jpeg with an orientation value
-                 * instead of rotating the pixels before giving it back to us. Picasso handles this
-                 * gracefully and 'fixes' the image when we resize. It's then necessary for us to
-                 * get the image's actual height and width so the EXIF is correct.
-                 */
-                mNewHeight = bitmap.getHeight();
-                mNewWidth = bitmap.getWidth();
-
-                /*
-                 * I could not find a way to save a bitmap object to disk correctly (so that it
-                 * was still an image) byte by byte, so I had to use bitmap.compress, which loses
-                 * the exif data.
-                 *
-                 * Which is why I'm using sanselan android. Android changed the tag identifiers
-                 * of some exif tags enough so that the pure sanselan library didnt pull tags
-                 * correctly. i couldnt find another library that would read and write tags and
-                 * worked in android. the ExifInterface class has been reported to have problems,
-                 * and I couldnt get it to work
-                 */
-                FileOutputStream fos = new FileOutputStream(mFilePath);
-                bitmap.compress(mCompressFormat, 100, fos);
-                fos.close();
+        if ( match == ProcessedPhotoLedger.Match.EXACT ) {
+            return;
+        }
 
-                if ( exif != null ) {
-                    exif.removeField(TiffConstants.EXIF_TAG_ORIENTATION);
-                    exif.removeField(TiffConstants.TIFF_TAG_ORIENTATION);
-                }
+        // a photo that wasn't written, or couldn't be resized or rotated, isn't recorded and is
+        // tried again next time
+        if ( !writePhoto(sourceFile, match == ProcessedPhotoLedger.Match.PARAMETERS) ) {
+            return;
+        }
+
+        start = startStage();
+
+        try {
+            ledger.record(ProcessedPhotoLedger.hash(sourceFile), sourceFile.length(), parameters, mPhotoID);
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+        }
+
+        endStage(PhotoMetrics.Stage.HASH, start);
+    }
+
+    /**
+     * Returns true if the photo was written, false if it was left as it was, including when it
+     * needed resizing or rotating and couldn't be. Its exif isn't updated then, since the size
+     * it would be stamped with is one the photo doesn't have.
+     *
+     * @param metadataOnly only update the exif, and write any missing renditions
+     */
+    private boolean writePhoto(File sourceFile, boolean metadataOnly) {
+        // pull the exif from the image before resizing, reading the header again only if the photo
+        // was rotated or resized since the task was created, by the work before it for one
+        long start = startStage();
+
+        if ( sourceFile.length() != mHeaderLength || sourceFile.lastModified() != mHeaderModified ) {
+            readHeader();
+        }
+
+        TiffOutputSet exif = getSanselanOutputSet(mHeader, TiffConstants.DEFAULT_TIFF_BYTE_ORDER);
+        endStage(PhotoMetrics.Stage.EXIF_READ, start);
+
+        // determine the orientation if there is one (if it's a jpeg, mainly from a samsung device)
+        int orientation = mHeader == null ? ExifInterface.ORIENTATION_NORMAL : mHeader.getOrientation();
+
+        // heif's exif can't be rewritten in place, it's only written along with the image
+        boolean heif = mHeader != null && ImageHeaderProbe.MIME_TYPE_HEIF.equals(mHeader.getMimeType());
+
+        // if a resize is required, or a rotate, or a new format, and the pixels aren't already ones
+        // the pipeline wrote
+        boolean formatChanged = mHeader != null && mHeader.getMimeType() != null &&
+            !mHeader.getMimeType().equals(getOutputMimeType());
+        boolean resizeRequired = mNewHeight != mOriginalHeight || mNewWidth != mOriginalWidth || orientation != 0 ||
+            formatChanged || heif;
+        if ( resizeRequired && (!metadataOnly || heif) ) {
+            if ( !isJpegRotation() ) {
+                // the resized photo and its renditions are written along with their exif
+                return resize(sourceFile, orientation, exif);
             }
-            catch ( IOException e ) {
-                FulcrumLogger.log(TAG, "Picasso threw IOException trying to resize photo: " + mFilePath);
+
+            // already upright, the pixels don't need touching
+            if ( orientation > ExifInterface.ORIENTATION_NORMAL ) {
+                if ( !rotateJpeg(sourceFile, orientation) ) {
+                    return false;
+                }
+
+                EXIFUtils.invalidateCache(sourceFile);
+                removeOrientation(exif);
+                orientation = ExifInterface.ORIENTATION_NORMAL;
             }
         }
 
+        boolean written = false;
+
         if ( exif != null ) {
             try {
-                writeExifInformation(exif);
+                start = startStage();
+
+                writeExifInformation(exif, mNewWidth, mNewHeight);
 
                 writeExifLocation(exif, mLocation);
 
+                endStage(PhotoMetrics.Stage.EXIF_WRITE, start);
+
                 // save the exif back into the image
+                start = startStage();
                 saveExifToFile(sourceFile, exif);
+                endStage(PhotoMetrics.Stage.SAVE_EXIF, start);
+                written = true;
             }
             catch ( IOException | ImageWriteException | ImageReadException e ) {
                 FulcrumLogger.log(e);
             }
         }
 
-        return null;
+        if ( metadataOnly && hasRenditions() ) {
+            return written;
+        }
+
+        // the photo wasn't decoded, so decode it once at the largest rendition's size
+        writeRenditions(createCodec(), null, exif, orientation);
+
+        return written;
     }
 
-    // ------------------------------------------------------------------------
-    // Private Methods
-    // ------------------------------------------------------------------------
+    /**
+     * A jpeg kept at its native size only needs its orientation applied, which can be done
+     * losslessly or a band at a time instead of decoding the whole image.
+     */
+    private boolean isJpegRotation() {
+        return mNewHeight == mOriginalHeight && mNewWidth == mOriginalWidth &&
+            mOutputFormat == PhotoFormat.JPEG &&
+            mHeader != null && ImageHeaderProbe.MIME_TYPE_JPEG.equals(mHeader.getMimeType());
+    }
+
+    /**
+     * Resizes and orients the photo and writes it back with its exif. Returns false, leaving the
+     * photo and exif untouched, if it couldn't be decoded or written.
+     */
+    private boolean resize(File sourceFile, int orientation, TiffOutputSet exif) {
+        // decode subsampled close to the new size, then scale and rotate the rest of the way
+        AndroidImageCodec codec = createCodec();
+        long start = startStage();
+        Bitmap bitmap = codec.decode(mFilePath, mOriginalWidth, mOriginalHeight, mNewWidth, mNewHeight, orientation);
+        mPeakBitmapBytes = codec.getPeakBitmapBytes();
+        endStage(PhotoMetrics.Stage.DECODE, start);
+        addBytesRead(sourceFile);
+
+        if ( bitmap == null ) {
+            FulcrumLogger.log(TAG, "Could not decode photo to resize: " + mFilePath);
+            return false;
+        }
+
+        boolean written = false;
 
-    private TiffOutputSet getSanselanOutputSet(File jpegImageFile, int defaultByteOrder) {
         try {
-            TiffImageMetadata metadata = EXIFUtils.getImageMetadata(jpegImageFile);
-            TiffOutputSet outputSet = metadata == null ? null : metadata.getOutputSet();
+            /*
+             * Some camera apps (some Samsungs) will return the jpeg with an orientation value
+             * instead of rotating the pixels before giving it back to us. The resizer applies
+             * the orientation to the pixels, so it's then necessary for us to get the image's
+             * actual height and width so the EXIF is correct.
+             */
+            mNewHeight = bitmap.getHeight();
+            mNewWidth = bitmap.getWidth();
+
+            /*
+             * bitmap.compress loses the exif data, so the exif is built with sanselan android
+             * and spliced into the compressed jpeg before it's written. Android changed the tag
+             * identifiers of some exif tags enough so that the pure sanselan library didnt pull
+             * tags correctly, and the ExifInterface class has been reported to have problems.
+             */
+            if ( exif != null ) {
+                start = startStage();
+                removeOrientation(exif);
+                writeExifInformation(exif, mNewWidth, mNewHeight);
+                writeExifLocation(exif, mLocation);
+                endStage(PhotoMetrics.Stage.EXIF_WRITE, start);
+            }
 
-            // If JPEG file contains no EXIF metadata, create an empty set
-            // of EXIF metadata. Otherwise, use existing EXIF metadata to
-            // keep all other existing tags
-            return outputSet == null ?
-                new TiffOutputSet(metadata == null ? defaultByteOrder : metadata.contents.header.byteOrder) :
-                outputSet;
+            start = startStage();
+            write(codec, bitmap, exif, sourceFile);
+            endStage(PhotoMetrics.Stage.COMPRESS, start);
+            addBytesWritten(sourceFile);
+            written = true;
         }
-        catch ( IOException | ImageWriteException | ImageReadException e ) {
+        catch ( IOException | ImageWriteException e ) {
+            FulcrumLogger.log(TAG, "Exception trying to save resized photo: " + mFilePath);
             FulcrumLogger.log(e);
-            return null;
         }
+
+        try {
+            writeRenditions(codec, bitmap, exif, ExifInterface.ORIENTATION_NORMAL);
+        }
+        finally {
+            codec.release(bitmap);
+            EXIFUtils.invalidateCache(sourceFile);
+        }
+
+        return written;
     }
 
-    private void writeExifInformation(TiffOutputSet exif) throws ImageWriteException {
-        // store the EXIF width/height
-        TiffOutputDirectory exifDirectory = exif.getOrCreateExifDirectory();
+    private boolean rotateJpeg(File sourceFile, int orientation) {
+        // the source is read while the output is written, so it can't be overwritten in place
+        File rotatedFile = new File(sourceFile.getAbsolutePath() + ".rotated");
+        long start = startStage();
+
+        try {
+            // moving the DCT blocks loses nothing, re-encoding is only for jpegs it can't handle
+            if ( !LosslessJpegTransform.transform(sourceFile, rotatedFile, orientation) &&
+                !rotateTiled(rotatedFile, orientation) ) {
+                rotatedFile.delete();
+                return false;
+            }
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(TAG, "IOException trying to rotate photo: " + mFilePath);
+            rotatedFile.delete();
+            return false;
+        }
 
-        if ( exifDirectory != null ) {
-            TiffOutputField field;
+        endStage(PhotoMetrics.Stage.ROTATE, start);
+        addBytesRead(sourceFile);
+        addBytesWritten(rotatedFile);
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH, exif.byteOrder, mNewWidth);
-            exifDirectory.removeField(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH);
-            exifDirectory.add(field);
+        // rename replaces the photo atomically, so it's never lost if the rename fails part way
+        if ( !rotatedFile.renameTo(sourceFile) ) {
+            FulcrumLogger.log(TAG, "Could not replace photo with its rotated copy: " + mFilePath);
+            rotatedFile.delete();
+            return false;
+        }
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH, exif.byteOrder, mNewHeight);
-            exifDirectory.removeField(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH);
-            exifDirectory.add(field);
+        if ( ImageGeometry.isTransposed(orientation) ) {
+            mNewHeight = mOriginalWidth;
+            mNewWidth = mOriginalHeight;
+        }
 
-            if ( exifDirectory.findField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL) == null ) {
-                SimpleDateFormat formatter = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
-                formatter.setTimeZone(TimeZone.getDefault());
+        return true;
+    }
 
-                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL, exif.byteOrder, formatter.format(new Date()));
-                exifDirectory.removeField(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL);
-                exifDirectory.add(field);
-            }
+    private boolean rotateTiled(File rotatedFile, int orientation) throws IOException {
+        TiledImageRotator rotator = new TiledImageRotator();
+        boolean rotated = rotator.rotate(mFilePath, orientation, mCompressionTarget.getQuality(), rotatedFile);
+        mPeakBitmapBytes = rotator.getPeakBytes();
 
-            if ( exifDirectory.findField(ExifTagConstants.EXIF_TAG_CREATE_DATE) == null ) {
-                SimpleDateFormat formatter = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
-                formatter.setTimeZone(TimeZone.getDefault());
+        if ( !rotated ) {
+            FulcrumLogger.log(TAG, "Could not decode photo to rotate: " + mFilePath);
+        }
 
-                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_CREATE_DATE, exif.byteOrder, formatter.format(new Date()));
-                exifDirectory.removeField(ExifTagConstants.EXIF_TAG_CREATE_DATE);
-                exifDirectory.add(field);
-            }
+        return rotated;
+    }
+
+    /**
+     * Writes each rendition scaled down from the next larger one, starting from {@code source}.
+     * Without a source the photo is decoded at the largest rendition's size, applying
+     * {@code orientation} if it's still only in the exif.
+     */
+    private <I> void writeRenditions(ImageCodec<I> codec, I source, TiffOutputSet exif, int orientation) {
+        if ( mRenditions.length == 0 ) {
+            return;
         }
 
-        // store the regular width/height (the width+height is stored twice in the EXIF under 2 different tags)
-        TiffOutputDirectory rootDirectory = exif.getOrCreateRootDirectory();
+        boolean decoded = source == null;
+        long start = startStage();
+
+        if ( decoded ) {
+            float scale = Math.min(1f, (float) mRenditions[0] / Math.max(mNewWidth, mNewHeight));
+
+            try {
+                source = codec.decode(mFilePath, mNewWidth, mNewHeight, Math.round(mNewWidth * scale),
+                                      Math.round(mNewHeight * scale), orientation);
+            }
+            catch ( IOException e ) {
+                FulcrumLogger.log(e);
+            }
 
-        if ( rootDirectory != null ) {
-            TiffOutputField field;
+            if ( source == null ) {
+                FulcrumLogger.log(TAG, "Could not decode photo for renditions: " + mFilePath);
+                return;
+            }
+        }
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_WIDTH_IFD0, exif.byteOrder, mNewWidth);
-            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_WIDTH_IFD0);
-            rootDirectory.add(field);
+        // every rendition is upright
+        removeOrientation(exif);
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_HEIGHT_IFD0, exif.byteOrder, mNewHeight);
-            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_HEIGHT_IFD0);
-            rootDirectory.add(field);
+        I previous = source;
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_ARTIST, exif.byteOrder, Account.getActiveAccount().getUserID());
-            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_ARTIST);
-            rootDirectory.add(field);
+        try {
+            for ( int dimension : mRenditions ) {
+                int width = codec.getWidth(previous);
+                int height = codec.getHeight(previous);
+                float scale = Math.min(1f, (float) dimension / Math.max(width, height));
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_SOFTWARE, exif.byteOrder, ApplicationUtils.getUserAgentString(mContext));
-            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_SOFTWARE);
-            rootDirectory.add(field);
+                if ( scale < 1 ) {
+                    I rendition = codec.scale(previous, Math.round(width * scale), Math.round(height * scale));
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_DESCRIPTION, exif.byteOrder, mPhotoID);
-            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_DESCRIPTION);
-            rootDirectory.add(field);
+                    if ( previous != source ) {
+                        codec.release(previous);
+                    }
 
-            field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_IMAGE_UNIQUE_ID, exif.byteOrder, mPhotoID);
-            rootDirectory.removeField(ExifTagConstants.EXIF_TAG_IMAGE_UNIQUE_ID);
-            rootDirectory.add(field);
+                    previous = rendition;
+                }
 
-            if ( rootDirectory.findField(ExifTagConstants.EXIF_TAG_MAKE) == null ) {
-                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_MAKE, exif.byteOrder, Build.MANUFACTURER);
-                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_MAKE);
-                rootDirectory.add(field);
-            }
+                if ( exif != null ) {
+                    writeExifInformation(exif, codec.getWidth(previous), codec.getHeight(previous));
+                }
 
-            if ( rootDirectory.findField(ExifTagConstants.EXIF_TAG_MODEL) == null ) {
-                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_MODEL, exif.byteOrder, Build.MODEL);
-                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_MODEL);
-                rootDirectory.add(field);
+                File renditionFile = getRenditionFile(mFilePath, dimension);
+                write(codec, previous, exif, renditionFile);
+                addBytesWritten(renditionFile);
+            }
+        }
+        catch ( IOException | ImageWriteException e ) {
+            FulcrumLogger.log(TAG, "Exception trying to save photo renditions: " + mFilePath);
+            FulcrumLogger.log(e);
+        }
+        finally {
+            if ( previous != source ) {
+                codec.release(previous);
             }
 
-            if ( rootDirectory.findField(ExifTagConstants.EXIF_TAG_DOCUMENT_NAME) == null ) {
-                field = TiffOutputField.create(ExifTagConstants.EXIF_TAG_DOCUMENT_NAME, exif.byteOrder, DateUtils.getTimestampFormatter().format(new Date()));
-                rootDirectory.removeField(ExifTagConstants.EXIF_TAG_DOCUMENT_NAME);
-                rootDirectory.add(field);
+            if ( decoded ) {
+                codec.release(source);
             }
+
+            endStage(PhotoMetrics.Stage.RENDITIONS, start);
         }
     }
 
-    private void writeExifLocation(TiffOutputSet exif, Location location) {
-        // if the exif already has location or we have no location to set, exit
-        if ( location == null ) {
-            return;
+    private AndroidImageCodec createCodec() {
+        if ( mOutputFormat == PhotoFormat.HEIF ) {
+            return new HeifImageCodec(BitmapPool.getInstance(mContext), mContext.getCacheDir());
         }
 
-        try {
-            TiffOutputDirectory gps = exif.getOrCreateGPSDirectory();
-
-            boolean hasLocation = gps.findField(TiffConstants.GPS_TAG_GPS_LATITUDE_REF) != null &&
-                gps.findField(TiffConstants.GPS_TAG_GPS_LATITUDE) != null &&
-                gps.findField(TiffConstants.GPS_TAG_GPS_LONGITUDE_REF) != null &&
-                gps.findField(TiffConstants.GPS_TAG_GPS_LONGITUDE) != null;
+        return new AndroidImageCodec(mCompressFormat, BitmapPool.getInstance(mContext));
+    }
 
-            TiffOutputField field;
+    /**
+     * Writes an image with its exif. HEIF can't have exif spliced in after it's compressed, so
+     * the codec is given it to write along with the image.
+     */
+    private <I> void write(ImageCodec<I> codec, I image, TiffOutputSet exif, File destination)
+        throws IOException, ImageWriteException {
+        if ( codec instanceof HeifImageCodec ) {
+            ((HeifImageCodec) codec).setExif(exif != null ? ImageFileWriter.encodeTiff(exif) : null);
+        }
 
-            if ( !hasLocation ) {
-                double longitude = location.getLongitude();
-                double latitude = location.getLatitude();
+        ImageFileWriter.write(codec, image, mCompressionTarget, exif, destination);
+    }
 
-                String longitudeRef = longitude < 0.0 ? "W" : "E";
-                longitude = Math.abs(longitude);
+    private long startStage() {
+        return mMetrics != null ? System.nanoTime() : 0;
+    }
 
-                String latitudeRef = latitude < 0.0 ? "S" : "N";
-                latitude = Math.abs(latitude);
+    private void endStage(PhotoMetrics.Stage stage, long start) {
+        if ( mMetrics != null ) {
+            mMetrics.addStageNanos(stage, System.nanoTime() - start);
+        }
+    }
 
-                // add longitude ref
-                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LONGITUDE_REF, exif.byteOrder, longitudeRef);
-                gps.removeField(TiffConstants.GPS_TAG_GPS_LONGITUDE_REF);
-                gps.add(field);
+    private void addBytesRead(File file) {
+        if ( mMetrics != null ) {
+            mMetrics.addBytesRead(file.length());
+        }
+    }
 
-                // add latitude ref
-                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LATITUDE_REF, exif.byteOrder, latitudeRef);
-                gps.removeField(TiffConstants.GPS_TAG_GPS_LATITUDE_REF);
-                gps.add(field);
+    private void addBytesWritten(File file) {
+        if ( mMetrics != null ) {
+            mMetrics.addBytesWritten(file.length());
+        }
+    }
 
-                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LONGITUDE, exif.byteOrder, toDMS(longitude));
-                gps.removeField(TiffConstants.GPS_TAG_GPS_LONGITUDE);
-                gps.add(field);
+    private static void removeOrientation(TiffOutputSet exif) {
+        // the pixels have been oriented, so the tag would rotate them a second time
+        if ( exif != null ) {
+            exif.removeField(TiffConstants.EXIF_TAG_ORIENTATION);
+            exif.removeField(TiffConstants.TIFF_TAG_ORIENTATION);
+        }
+    }
 
-                field = TiffOutputField.create(TiffConstants.GPS_TAG_GPS_LATITUDE, exif.byteOrder, toDMS(latitude));
-                gps.removeField(TiffConstants.GPS_TAG_GPS_LATITUDE);
-                gps.add(field);
-            }
+    /**
+     * Reads the size, type, orientation and exif in one pass, and sizes the photo from them.
+     * Returns the bounds a bounds decode would have given.
+     */
+    private BitmapFactory.Options readHeader() {
+        File imageFile = new File(mFilePath);
+        mHeaderLength = imageFile.length();
+        mHeaderModified = imageFile.lastModified();
+        mHeader = probeHeader(imageFile);
+
+        // determine the image's original height and width, only decoding bounds if the header didn't have them
+        BitmapFactory.Options options;
+        if ( mHeader != null && mHeader.hasSize() ) {
+            options = toBoundsOptions(mHeader);
+        }
+        else {
+            options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(mFilePath, options);
+        }
+        mOriginalWidth = options.outWidth;
+        mOriginalHeight = options.outHeight;
 
-            if ( location.hasAltitude() ) {
-                double altitude = location.getAltitude();
+        if ( mMetrics != null && mHeader != null ) {
+            mMetrics.addBytesRead(mHeader.getBytesRead());
+        }
 
-                int altitudeRef = altitude < 0.0 ?
-                    TiffConstants.GPS_TAG_GPS_ALTITUDE_REF_VALUE_BELOW_SEA_LEVEL :
-                    TiffConstants.GPS_TAG_GPS_ALTITUDE_REF_VALUE_ABOVE_SEA_LEVEL;
+        // determine the scaling factor for the dimensions
+        float scaleFactor;
+        if ( mLargestDimension == 0 ) {
+            scaleFactor = 1;
+        }
+        else if ( mOriginalHeight >= mOriginalWidth ) {
+            scaleFactor = (float) mLargestDimension / mOriginalHeight;
+        }
+        else {
+            scaleFactor = (float) mLargestDimension / mOriginalWidth;
+        }
 
-                altitude = Math.abs(altitude);
+        // determine the new dimensions based on the calculated scale factor
+        mNewHeight = Math.round(mOriginalHeight * scaleFactor);
+        mNewWidth = Math.round(mOriginalWidth * scaleFactor);
 
-                TagInfo altitudeRefTag = new TagInfo("GPS Altitude Ref", 5,
-                                                     TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_BYTE, 1,
-                                                     TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
+        return options;
+    }
 
-                // add altitude ref
-                field = TiffOutputField.create(altitudeRefTag, exif.byteOrder, (byte) altitudeRef);
-                gps.removeField(altitudeRefTag);
-                gps.add(field);
+    /**
+     * The same values a bounds only decode would fill in.
+     */
+    private static BitmapFactory.Options toBoundsOptions(ImageHeaderProbe header) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        options.outWidth = header.getWidth();
+        options.outHeight = header.getHeight();
+        options.outMimeType = header.getMimeType();
+        return options;
+    }
 
-                // add altitude
-                // the altitude tag is defined incorrectly in sanselan, it should have length 1, not -1
-                TagInfo altitudeTag = new TagInfo("GPS Altitude", 6,
-                                                  TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_RATIONAL, 1,
-                                                  TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
+    private static ImageHeaderProbe probeHeader(File imageFile) {
+        try {
+            return ImageHeaderProbe.probe(imageFile);
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+            return null;
+        }
+    }
 
-                field = TiffOutputField.create(altitudeTag, exif.byteOrder, new Double[] {
-                    altitude
-                });
-                gps.removeField(altitudeTag);
-                gps.add(field);
-            }
+    private TiffOutputSet getSanselanOutputSet(ImageHeaderProbe header, int defaultByteOrder) {
+        if ( header == null ) {
+            return null;
+        }
 
-            if ( location.hasAccuracy() ) {
-                double accuracy = location.getAccuracy();
-
-                // sanselan doesn't define the H Positioning Error tag, so we manually define it at offset 31
-                // http://www.sno.phy.queensu.ca/~phil/exiftool/TagNames/GPS.html
-                // iOS writes to this field and it has some level of standardization
-                TagInfo accuracyTag = new TagInfo("GPS H Positioning Error", 31,
-                                                  TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_RATIONAL, 1,
-                                                  TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
-
-                // add accuracy
-                field = TiffOutputField.create(accuracyTag, exif.byteOrder, new Double[] {
-                    accuracy
-                });
-                gps.removeField(accuracyTag);
-                gps.add(field);
-
-                // add accuracy to the DOP field too
-                // the GPS DOP tag is defined incorrectly in sanselan, it should have length 1, not -1
-                TagInfo dopTag = new TagInfo("GPS DOP", 11,
-                                             TiffFieldTypeConstants.FIELD_TYPE_DESCRIPTION_RATIONAL, 1,
-                                             TiffDirectoryConstants.EXIF_DIRECTORY_GPS);
-
-                field = TiffOutputField.create(dopTag, exif.byteOrder, new Double[] { accuracy });
-                gps.removeField(dopTag);
-                gps.add(field);
-            }
+        try {
+            // If JPEG file contains no EXIF metadata, create an empty set
+            // of EXIF metadata. Otherwise, use existing EXIF metadata to
+            // keep all other existing tags
+            return header.getOutputSet(defaultByteOrder);
         }
-        catch ( ImageWriteException e ) {
+        catch ( IOException | ImageWriteException | ImageReadException e ) {
             FulcrumLogger.log(e);
+            return null;
+        }
+    }
+
+    private void writeExifInformation(TiffOutputSet exif, int width, int height) throws ImageWriteException {
+        getExifStamper().writeExifInformation(exif, width, height, mPhotoID);
+    }
+
+    private void writeExifLocation(TiffOutputSet exif, Location location) {
+        if ( location != null ) {
+            getExifStamper().writeExifLocation(exif, new ExifStamper.Position(
+                location.getLatitude(), location.getLongitude(),
+                location.hasAltitude() ? location.getAltitude() : null,
+                location.hasAccuracy() ? (double) location.getAccuracy() : null));
         }
     }
 
-    private Double[] toDMS(double input) {
-        double degrees, minutes, seconds, remainder;
+    private boolean hasRenditions() {
+        for ( int dimension : mRenditions ) {
+            if ( !getRenditionFile(mFilePath, dimension).exists() ) {
+                return false;
+            }
+        }
+
+        return true;
+    }
 
-        degrees = (double) ((long) input);
+    /**
+     * The settings a photo is written with, so duplicate resizes can be told apart from newer
+     * ones and a photo that's already been written with them is recognized. They don't depend
+     * on the photo's size, which is only known once the task runs and reads the photo again.
+     */
+    private String getParameters() {
+        return mLargestDimension + " " + mCompressFormat + " " + mOutputFormat + " " + mCompressionTarget + " " +
+            Arrays.toString(mRenditions);
+    }
 
-        remainder = input % 1.0;
-        remainder *= 60.0;
+    private ProcessedPhotoLedger getLedger() {
+        synchronized ( ImageFileResizeTask.class ) {
+            if ( sLedger == null ) {
+                sLedger = ProcessedPhotoLedger.load(new File(mContext.getFilesDir(), ProcessedPhotoLedger.FILE_NAME));
+            }
 
-        minutes = (double) ((long) remainder);
+            return sLedger;
+        }
+    }
 
-        remainder %= 1.0;
+    private ExifStamper getExifStamper() {
+        String artist = Account.getActiveAccount().getUserID();
+        String software = ApplicationUtils.getUserAgentString(mContext);
 
-        seconds = remainder * 60.0;
+        synchronized ( ImageFileResizeTask.class ) {
+            if ( sExifStamper == null || !sExifStamper.isFor(artist, software, Build.MANUFACTURER, Build.MODEL) ) {
+                sExifStamper = new ExifStamper(artist, software, Build.MANUFACTURER, Build.MODEL);
+            }
 
-        return new Double[] {
-            degrees, minutes, seconds
-        };
+            return sExifStamper;
+        }
     }
 
     private void saveExifToFile(File imageFile, TiffOutputSet exif)
         throws IOException, ImageWriteException, ImageReadException {
+        // ExifRewriter only handles jpegs
+        if ( mHeader != null && ImageHeaderProbe.MIME_TYPE_WEBP.equals(mHeader.getMimeType()) ) {
+            ImageFileWriter.writeExif(imageFile, exif);
+            EXIFUtils.invalidateCache(imageFile);
+            return;
+        }
+
         String tempFileName = imageFile.getAbsolutePath() + ".tmp";
         File tempFile = new File(tempFileName);
 
@@ -478,5 +906,7 @@ public class ImageFileResizeTask extends AsyncTask<Void, Void, Void> {
         if ( imageFile.delete() ) {
             tempFile.renameTo(imageFile);
         }
+
+        EXIFUtils.invalidateCache(imageFile);
     }
 }
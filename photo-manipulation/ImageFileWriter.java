@@ -0,0 +1,441 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.formats.tiff.write.TiffImageWriterLossy;
+import org.apache.sanselan.formats.tiff.write.TiffOutputSet;
+
+/**
+ * Writes an image and its exif to disk in one pass. The image is compressed into memory, the
+ * exif is spliced in as an APP1 segment right after the jpeg's SOI and the result is written
+ * once to a temp file that's renamed over the destination. Compressing straight to the file
+ * and then running it through ExifRewriter writes every photo twice.
+ *
+ * WebPs get their exif the same way, in an EXIF chunk. A simple WebP is turned into an
+ * extended one with a VP8X chunk first, since only those can carry metadata. The exif of a WebP
+ * that's already written is replaced the same way, see {@link #writeExif}.
+ *
+ * Images are compressed through an {@link ImageCodec}, so the same code writes Bitmaps in the
+ * app and BufferedImages when reprocessing on a server.
+ */
+public class ImageFileWriter {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    /**
+     * A segment's length field is 16 bits and counts itself.
+     */
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private static final int MARKER_APP1 = 0xE1;
+
+    // the RIFF header, then the first chunk's fourcc and size
+    private static final int WEBP_HEADER_SIZE = 12;
+
+    private static final int WEBP_CHUNK_HEADER_SIZE = 8;
+
+    private static final int VP8X_CHUNK_SIZE = WEBP_CHUNK_HEADER_SIZE + 10;
+
+    private static final int VP8X_FLAG_EXIF = 0x08;
+
+    private static final int VP8X_FLAG_ALPHA = 0x10;
+
+    private static final int VP8L_SIGNATURE = 0x2F;
+
+    /**
+     * The search stops once the quality is known to within this many steps. Closer than that
+     * the size barely changes, and each step is another full compress.
+     */
+    private static final int CONVERGED_QUALITY_STEPS = 2;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private ImageFileWriter() {
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Compresses {@code image} to {@code destination}, replacing it if it exists, with the
+     * quality picked for the target. A byte budget is searched for in memory, so only the chosen
+     * quality is written. The exif is only written for jpegs and webps and can be null. The
+     * destination is left as it was if anything fails. Returns the quality used.
+     */
+    public static <I> int write(ImageCodec<I> codec, I image, CompressionTarget target, TiffOutputSet exif,
+                                File destination) throws IOException, ImageWriteException {
+        boolean jpeg = ImageHeaderProbe.MIME_TYPE_JPEG.equals(codec.getMimeType());
+        boolean webp = ImageHeaderProbe.MIME_TYPE_WEBP.equals(codec.getMimeType());
+        byte[] app1 = exif != null && jpeg ? encodeApp1(exif) : null;
+        byte[] tiff = exif != null && webp ? encodeTiff(exif) : null;
+
+        int overhead = 0;
+        if ( app1 != null ) {
+            overhead = app1.length;
+        }
+        else if ( tiff != null ) {
+            overhead = VP8X_CHUNK_SIZE + WEBP_CHUNK_HEADER_SIZE + tiff.length + 1;
+        }
+
+        // a high quality jpeg is usually well under a byte per pixel
+        int size = Math.max(65536, codec.getWidth(image) * codec.getHeight(image) / 2);
+        ImageBuffer buffer = new ImageBuffer(size);
+        int quality = target.getQuality();
+
+        codec.compress(image, quality, buffer);
+
+        // png ignores the quality, so there's nothing to search
+        if ( target.isAdaptive() && !ImageHeaderProbe.MIME_TYPE_PNG.equals(codec.getMimeType()) ) {
+            quality = search(codec, image, target, overhead, buffer);
+        }
+
+        if ( app1 != null && !buffer.startsWithSOI() ) {
+            throw new IOException("Compressed photo is not a jpeg: " + destination);
+        }
+
+        if ( tiff != null && !buffer.isWebp() ) {
+            throw new IOException("Compressed photo is not a webp: " + destination);
+        }
+
+        writeFile(destination, buffer, app1, tiff, codec.getWidth(image), codec.getHeight(image));
+
+        return quality;
+    }
+
+    /**
+     * Replaces the exif of a WebP on disk without compressing it again, the way ExifRewriter
+     * updates a jpeg's. Any EXIF chunk it had is dropped. The WebP is left as it was if
+     * anything fails.
+     */
+    public static void writeExif(File webp, TiffOutputSet exif) throws IOException, ImageWriteException {
+        ImageHeaderProbe header = ImageHeaderProbe.probe(webp);
+
+        if ( !ImageHeaderProbe.MIME_TYPE_WEBP.equals(header.getMimeType()) || !header.hasSize() ) {
+            throw new IOException("Not a webp: " + webp);
+        }
+
+        ImageBuffer buffer = new ImageBuffer((int) webp.length());
+        FileInputStream input = new FileInputStream(webp);
+
+        try {
+            buffer.readFrom(input);
+        }
+        finally {
+            input.close();
+        }
+
+        buffer.removeWebpExif();
+
+        writeFile(webp, buffer, null, encodeTiff(exif), header.getWidth(), header.getHeight());
+    }
+
+    private static void writeFile(File destination, ImageBuffer buffer, byte[] app1, byte[] tiff, int width,
+                                  int height) throws IOException {
+        File tempFile = new File(destination.getAbsolutePath() + ".tmp");
+        boolean written = false;
+
+        try {
+            FileOutputStream output = new FileOutputStream(tempFile);
+
+            try {
+                if ( app1 != null ) {
+                    buffer.writeTo(output, 0, 2);
+                    output.write(app1);
+                    buffer.writeTo(output, 2);
+                }
+                else if ( tiff != null ) {
+                    writeWebp(output, buffer, tiff, width, height);
+                }
+                else {
+                    buffer.writeTo(output, 0);
+                }
+
+                output.getFD().sync();
+            }
+            finally {
+                output.close();
+            }
+
+            // rename replaces the destination atomically, so it's never seen half written
+            written = tempFile.renameTo(destination);
+
+            if ( !written ) {
+                throw new IOException("Could not rename " + tempFile + " to " + destination);
+            }
+        }
+        finally {
+            if ( !written ) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Binary searches for the highest quality that fits the budget. {@code buffer} holds the
+     * image compressed at the target's starting quality and is left holding the chosen one.
+     */
+    private static <I> int search(ImageCodec<I> codec, I image, CompressionTarget target, int overhead,
+                                  ImageBuffer buffer) throws IOException {
+        long budget = target.getMaxBytes() - overhead;
+
+        if ( buffer.size() <= budget ) {
+            return target.getQuality();
+        }
+
+        ImageBuffer candidate = new ImageBuffer(buffer.size());
+        int low = target.getMinQuality();
+        int high = target.getQuality() - 1;
+        int best = -1;
+
+        while ( low <= high ) {
+            int quality = (low + high + 1) / 2;
+
+            candidate.reset();
+            codec.compress(image, quality, candidate);
+
+            if ( candidate.size() <= budget ) {
+                best = quality;
+                buffer.swap(candidate);
+                low = quality + 1;
+            }
+            else {
+                high = quality - 1;
+            }
+
+            // close enough, the highest quality that fits is at most a step better
+            if ( best >= 0 && high - best < CONVERGED_QUALITY_STEPS ) {
+                break;
+            }
+        }
+
+        if ( best >= 0 ) {
+            return best;
+        }
+
+        // too big even at the floor, which wins over the budget. The floor was the last one tried.
+        buffer.swap(candidate);
+        return target.getMinQuality();
+    }
+
+    /**
+     * Writes a compressed WebP with an EXIF chunk at the end, adding a VP8X chunk up front if
+     * it's a simple one. A WebP that already has exif is written as it is.
+     */
+    private static void writeWebp(OutputStream output, ImageBuffer webp, byte[] tiff, int width, int height)
+        throws IOException {
+        byte[] header = webp.copyOf(WEBP_HEADER_SIZE + VP8X_CHUNK_SIZE);
+        boolean extended = header[12] == 'V' && header[13] == 'P' && header[14] == '8' && header[15] == 'X';
+
+        if ( extended && (header[20] & VP8X_FLAG_EXIF) != 0 ) {
+            webp.writeTo(output, 0);
+            return;
+        }
+
+        int exifChunkSize = WEBP_CHUNK_HEADER_SIZE + tiff.length + (tiff.length & 1);
+        int riffSize = webp.size() - 8 + exifChunkSize + (extended ? 0 : VP8X_CHUNK_SIZE);
+
+        putIntLE(header, 4, riffSize);
+        output.write(header, 0, WEBP_HEADER_SIZE);
+
+        if ( extended ) {
+            header[20] |= VP8X_FLAG_EXIF;
+            output.write(header, WEBP_HEADER_SIZE, VP8X_CHUNK_SIZE);
+            webp.writeTo(output, WEBP_HEADER_SIZE + VP8X_CHUNK_SIZE);
+        }
+        else {
+            // a lossless image says in its own header whether it uses alpha, lossy alpha needs VP8X
+            boolean lossless = header[12] == 'V' && header[13] == 'P' && header[14] == '8' && header[15] == 'L';
+            boolean alpha = lossless && (header[20] & 0xFF) == VP8L_SIGNATURE && (header[24] & 0x10) != 0;
+
+            byte[] vp8x = new byte[VP8X_CHUNK_SIZE];
+            vp8x[0] = 'V';
+            vp8x[1] = 'P';
+            vp8x[2] = '8';
+            vp8x[3] = 'X';
+            putIntLE(vp8x, 4, VP8X_CHUNK_SIZE - WEBP_CHUNK_HEADER_SIZE);
+            vp8x[8] = (byte) (VP8X_FLAG_EXIF | (alpha ? VP8X_FLAG_ALPHA : 0));
+
+            // the canvas size minus one, 24 bits each
+            putInt24LE(vp8x, 12, width - 1);
+            putInt24LE(vp8x, 15, height - 1);
+
+            output.write(vp8x);
+            webp.writeTo(output, WEBP_HEADER_SIZE);
+        }
+
+        byte[] chunkHeader = { 'E', 'X', 'I', 'F', 0, 0, 0, 0 };
+        putIntLE(chunkHeader, 4, tiff.length);
+        output.write(chunkHeader);
+        output.write(tiff);
+
+        // chunks are padded to an even size
+        if ( (tiff.length & 1) != 0 ) {
+            output.write(0);
+        }
+    }
+
+    private static int getIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 |
+            (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static void putIntLE(byte[] bytes, int offset, int value) {
+        putInt24LE(bytes, offset, value);
+        bytes[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void putInt24LE(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >> 8);
+        bytes[offset + 2] = (byte) (value >> 16);
+    }
+
+    /**
+     * The exif as a tiff block, the way WebP and HEIF store it.
+     */
+    static byte[] encodeTiff(TiffOutputSet exif) throws IOException, ImageWriteException {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        new TiffImageWriterLossy(exif.byteOrder).write(tiff, exif);
+        return tiff.toByteArray();
+    }
+
+    /**
+     * The exif as a complete APP1 segment, marker included.
+     */
+    static byte[] encodeApp1(TiffOutputSet exif) throws IOException, ImageWriteException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        segment.write(0xFF);
+        segment.write(MARKER_APP1);
+
+        // the length goes here once the tiff is written
+        segment.write(0);
+        segment.write(0);
+        segment.write(EXIF_HEADER);
+
+        new TiffImageWriterLossy(exif.byteOrder).write(segment, exif);
+
+        byte[] bytes = segment.toByteArray();
+        int length = bytes.length - 2;
+
+        if ( length > MAX_SEGMENT_LENGTH ) {
+            throw new ImageWriteException("Exif is too large for an APP1 segment: " + length + " bytes");
+        }
+
+        bytes[2] = (byte) (length >> 8);
+        bytes[3] = (byte) length;
+
+        return bytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    /**
+     * Writes straight out of its buffer instead of copying it with toByteArray.
+     */
+    private static class ImageBuffer extends ByteArrayOutputStream {
+
+        ImageBuffer(int size) {
+            super(size);
+        }
+
+        /**
+         * Trades contents with another buffer without copying either.
+         */
+        void swap(ImageBuffer other) {
+            byte[] bytes = buf;
+            int length = count;
+
+            buf = other.buf;
+            count = other.count;
+
+            other.buf = bytes;
+            other.count = length;
+        }
+
+        boolean isWebp() {
+            return count >= WEBP_HEADER_SIZE + WEBP_CHUNK_HEADER_SIZE &&
+                buf[0] == 'R' && buf[1] == 'I' && buf[2] == 'F' && buf[3] == 'F' &&
+                buf[8] == 'W' && buf[9] == 'E' && buf[10] == 'B' && buf[11] == 'P';
+        }
+
+        /**
+         * The first {@code length} bytes, zero padded if there are fewer.
+         */
+        byte[] copyOf(int length) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(buf, 0, bytes, 0, Math.min(length, count));
+            return bytes;
+        }
+
+        void readFrom(InputStream input) throws IOException {
+            byte[] chunk = new byte[16 * 1024];
+            int read;
+
+            while ( (read = input.read(chunk)) > 0 ) {
+                write(chunk, 0, read);
+            }
+        }
+
+        /**
+         * Drops every EXIF chunk from a WebP and clears VP8X's exif flag, so writeWebp adds the
+         * new one. A chunk that runs past the end is kept as it is.
+         */
+        void removeWebpExif() {
+            int read = WEBP_HEADER_SIZE;
+            int write = WEBP_HEADER_SIZE;
+
+            while ( read + WEBP_CHUNK_HEADER_SIZE <= count ) {
+                int size = getIntLE(buf, read + 4);
+                int length = WEBP_CHUNK_HEADER_SIZE + size + (size & 1);
+
+                if ( size < 0 || length > count - read ) {
+                    break;
+                }
+
+                boolean exif = buf[read] == 'E' && buf[read + 1] == 'X' && buf[read + 2] == 'I' && buf[read + 3] == 'F';
+
+                if ( !exif ) {
+                    System.arraycopy(buf, read, buf, write, length);
+                    write += length;
+                }
+
+                read += length;
+            }
+
+            System.arraycopy(buf, read, buf, write, count - read);
+            count = write + count - read;
+
+            if ( count > 20 && buf[12] == 'V' && buf[13] == 'P' && buf[14] == '8' && buf[15] == 'X' ) {
+                buf[20] &= ~VP8X_FLAG_EXIF;
+            }
+        }
+
+        boolean startsWithSOI() {
+            return count >= 2 && (buf[0] & 0xFF) == 0xFF && (buf[1] & 0xFF) == 0xD8;
+        }
+
+        void writeTo(OutputStream output, int offset) throws IOException {
+            writeTo(output, offset, count);
+        }
+
+        void writeTo(OutputStream output, int offset, int end) throws IOException {
+            output.write(buf, offset, end - offset);
+        }
+    }
+}
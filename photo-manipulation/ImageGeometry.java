@@ -0,0 +1,66 @@
+package com.spatialnetworks.fulcrum.util;
+
+/**
+ * The sizing and orientation math the resize pipeline shares between the app and
+ * {@code PhotoReprocessor}. It has no Android dependencies so it runs on a plain JVM too.
+ */
+public final class ImageGeometry {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * The EXIF orientation values, the same as ExifInterface's ORIENTATION_ constants.
+     */
+    public static final int ORIENTATION_NORMAL = 1;
+
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+
+    public static final int ORIENTATION_ROTATE_180 = 3;
+
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+
+    public static final int ORIENTATION_TRANSPOSE = 5;
+
+    public static final int ORIENTATION_ROTATE_90 = 6;
+
+    public static final int ORIENTATION_TRANSVERSE = 7;
+
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private ImageGeometry() {
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * The largest power of two the source can be divided by and still be at least as big as
+     * the target in both dimensions.
+     */
+    public static int calculateInSampleSize(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+
+        while ( sourceWidth / (sampleSize * 2) >= targetWidth && sourceHeight / (sampleSize * 2) >= targetHeight ) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Whether the orientation swaps the width and height.
+     */
+    public static boolean isTransposed(int orientation) {
+        return orientation == ORIENTATION_TRANSPOSE ||
+            orientation == ORIENTATION_ROTATE_90 ||
+            orientation == ORIENTATION_TRANSVERSE ||
+            orientation == ORIENTATION_ROTATE_270;
+    }
+}
@@ -0,0 +1,729 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.sanselan.ImageReadException;
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.formats.tiff.TiffImageMetadata;
+import org.apache.sanselan.formats.tiff.write.TiffOutputSet;
+
+/**
+ * Everything the resize needs to know about a photo before decoding it, read in one pass over
+ * the start of the file: the dimensions, the mime type, the orientation and the EXIF. For a
+ * jpeg the read stops at the start of frame marker, so the image data is never touched.
+ *
+ * WebPs and HEIFs the resize wrote keep their EXIF too, a WebP in an EXIF chunk after the image
+ * data, which is skipped over, and a HEIF in an Exif item its meta box points to. A HEIF's
+ * dimensions aren't read, they take a bounds decode.
+ */
+public class ImageHeaderProbe {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    public static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    public static final String MIME_TYPE_PNG = "image/png";
+
+    public static final String MIME_TYPE_GIF = "image/gif";
+
+    public static final String MIME_TYPE_WEBP = "image/webp";
+
+    public static final String MIME_TYPE_HEIF = "image/heif";
+
+    private static final String[] HEIF_BRANDS = { "heic", "heix", "mif1", "msf1" };
+
+    private static final int WEBP_FLAG_EXIF = 0x08;
+
+    private static final int VP8L_SIGNATURE = 0x2F;
+
+    private static final int CHUNK_VP8X = fourcc("VP8X");
+
+    private static final int CHUNK_VP8 = fourcc("VP8 ");
+
+    private static final int CHUNK_VP8L = fourcc("VP8L");
+
+    private static final int CHUNK_EXIF = fourcc("EXIF");
+
+    private static final int BOX_META = fourcc("meta");
+
+    private static final int BOX_IINF = fourcc("iinf");
+
+    private static final int BOX_ILOC = fourcc("iloc");
+
+    private static final int BOX_INFE = fourcc("infe");
+
+    private static final int ITEM_TYPE_EXIF = fourcc("Exif");
+
+    /**
+     * A HEIF's meta box is usually a few KB, and exif is at most as large as a jpeg's. Larger
+     * ones aren't read rather than trusting sizes from the file with the allocation.
+     */
+    private static final int MAX_METADATA_SIZE = 1024 * 1024;
+
+    /**
+     * Enough of the start of the file to recognize the format and, for png and gif, read the
+     * dimensions.
+     */
+    private static final int SIGNATURE_SIZE = 24;
+
+    private static final AtomicLong sBytesRead = new AtomicLong();
+
+    private static final AtomicLong sProbeCount = new AtomicLong();
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final String mMimeType;
+
+    private int mWidth = -1;
+
+    private int mHeight = -1;
+
+    private byte[] mTiff;
+
+    private ExifRecord mRecord;
+
+    private long mBytesRead;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private ImageHeaderProbe(String mimeType) {
+        mMimeType = mimeType;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    public static ImageHeaderProbe probe(File image) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new FileInputStream(image));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(counter, ExifReader.BUFFER_SIZE));
+
+        try {
+            in.mark(SIGNATURE_SIZE);
+
+            byte[] signature = new byte[SIGNATURE_SIZE];
+            int length = readAvailable(in, signature);
+
+            ImageHeaderProbe probe = new ImageHeaderProbe(detectMimeType(signature, length));
+
+            if ( MIME_TYPE_JPEG.equals(probe.mMimeType) ) {
+                in.reset();
+                probe.readJpeg(in);
+            }
+            else if ( MIME_TYPE_WEBP.equals(probe.mMimeType) ) {
+                in.reset();
+                probe.readWebp(in);
+            }
+            else if ( MIME_TYPE_HEIF.equals(probe.mMimeType) ) {
+                probe.readHeif(image);
+            }
+            else {
+                probe.readSize(signature, length);
+            }
+
+            probe.mBytesRead += counter.getCount();
+
+            sBytesRead.addAndGet(probe.mBytesRead);
+            sProbeCount.incrementAndGet();
+
+            return probe;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The bytes read from storage by every probe so far, read-ahead included.
+     */
+    public static long getTotalBytesRead() {
+        return sBytesRead.get();
+    }
+
+    public static long getProbeCount() {
+        return sProbeCount.get();
+    }
+
+    static String detectMimeType(byte[] signature, int length) {
+        if ( length >= 3 && (signature[0] & 0xFF) == 0xFF && (signature[1] & 0xFF) == 0xD8 && (signature[2] & 0xFF) == 0xFF ) {
+            return MIME_TYPE_JPEG;
+        }
+
+        if ( length >= 8 && (signature[0] & 0xFF) == 0x89 && signature[1] == 'P' && signature[2] == 'N' && signature[3] == 'G' &&
+            signature[4] == '\r' && signature[5] == '\n' && signature[6] == 0x1A && signature[7] == '\n' ) {
+            return MIME_TYPE_PNG;
+        }
+
+        if ( length >= 6 && signature[0] == 'G' && signature[1] == 'I' && signature[2] == 'F' && signature[3] == '8' ) {
+            return MIME_TYPE_GIF;
+        }
+
+        if ( length >= 12 && signature[0] == 'R' && signature[1] == 'I' && signature[2] == 'F' && signature[3] == 'F' &&
+            signature[8] == 'W' && signature[9] == 'E' && signature[10] == 'B' && signature[11] == 'P' ) {
+            return MIME_TYPE_WEBP;
+        }
+
+        // an iso media ftyp box with a heif brand
+        if ( length >= 12 && signature[4] == 'f' && signature[5] == 't' && signature[6] == 'y' && signature[7] == 'p' ) {
+            for ( String brand : HEIF_BRANDS ) {
+                if ( signature[8] == brand.charAt(0) && signature[9] == brand.charAt(1) &&
+                    signature[10] == brand.charAt(2) && signature[11] == brand.charAt(3) ) {
+                    return MIME_TYPE_HEIF;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    private static int readAvailable(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+
+        while ( total < buffer.length ) {
+            int count = in.read(buffer, total, buffer.length - total);
+
+            if ( count < 0 ) {
+                break;
+            }
+
+            total += count;
+        }
+
+        return total;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * One of the MIME_TYPE_ constants, or null if the format wasn't recognized.
+     */
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * Whether the dimensions were found in the header. If not, the caller has to fall back to
+     * a bounds decode.
+     */
+    public boolean hasSize() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * The EXIF orientation, ORIENTATION_NORMAL if there isn't one, the same as ExifInterface.
+     */
+    public int getOrientation() {
+        return mRecord == null ?
+            ImageGeometry.ORIENTATION_NORMAL :
+            mRecord.getInt(ExifRecord.TAG_ORIENTATION, ImageGeometry.ORIENTATION_NORMAL);
+    }
+
+    /**
+     * The parsed EXIF, or null if the image has none.
+     */
+    public ExifRecord getRecord() {
+        return mRecord;
+    }
+
+    /**
+     * Builds a sanselan output set from the EXIF that was read, or an empty one in the EXIF's
+     * byte order (or the default one if there's no EXIF) so new tags can still be written.
+     */
+    public TiffOutputSet getOutputSet(int defaultByteOrder) throws IOException, ImageReadException, ImageWriteException {
+        TiffImageMetadata metadata = mTiff == null ? null : ExifReader.parseImageMetadata(mTiff);
+        TiffOutputSet outputSet = metadata == null ? null : metadata.getOutputSet();
+
+        return outputSet == null ?
+            new TiffOutputSet(metadata == null ? defaultByteOrder : metadata.contents.header.byteOrder) :
+            outputSet;
+    }
+
+    /**
+     * How many bytes this probe read from storage.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private void readJpeg(DataInputStream in) throws IOException {
+        // already known to be SOI
+        in.readUnsignedShort();
+
+        try {
+            while ( true ) {
+                int marker = ExifReader.readMarker(in);
+
+                if ( marker == ExifReader.MARKER_SOS || marker == ExifReader.MARKER_EOI ) {
+                    return;
+                }
+
+                if ( marker == ExifReader.MARKER_TEM ||
+                    (marker >= ExifReader.MARKER_RST0 && marker <= ExifReader.MARKER_RST7) ) {
+                    continue;
+                }
+
+                int length = in.readUnsignedShort() - 2;
+
+                if ( length < 0 ) {
+                    return;
+                }
+
+                // the frame header comes after every APPn segment, so it's the last thing needed
+                if ( isStartOfFrame(marker) ) {
+                    in.readUnsignedByte();
+                    mHeight = in.readUnsignedShort();
+                    mWidth = in.readUnsignedShort();
+                    return;
+                }
+
+                // only the first EXIF segment counts, same as ExifReader
+                if ( marker == ExifReader.MARKER_APP1 && mTiff == null && length >= ExifReader.EXIF_HEADER.length ) {
+                    byte[] header = new byte[ExifReader.EXIF_HEADER.length];
+                    in.readFully(header);
+                    length -= header.length;
+
+                    if ( ExifReader.isExifHeader(header) ) {
+                        mTiff = new byte[length];
+                        in.readFully(mTiff);
+                        mRecord = ExifReader.parse(ByteBuffer.wrap(mTiff));
+                        continue;
+                    }
+                }
+
+                ExifReader.skipFully(in, length);
+            }
+        }
+        catch ( EOFException e ) {
+            // a truncated file still gives whatever came before the end
+        }
+    }
+
+    /**
+     * Reads the canvas size from the VP8X chunk or the image's own header, and the EXIF chunk
+     * if VP8X says there is one. A simple WebP, without VP8X, can't have EXIF.
+     */
+    private void readWebp(DataInputStream in) throws IOException {
+        // RIFF, the file size and WEBP
+        ExifReader.skipFully(in, 12);
+
+        boolean extended = false;
+        boolean exif = false;
+        byte[] chunk = new byte[10];
+
+        try {
+            while ( true ) {
+                int type = in.readInt();
+                int size = Integer.reverseBytes(in.readInt());
+
+                if ( size < 0 ) {
+                    return;
+                }
+
+                int padded = size + (size & 1);
+
+                if ( type == CHUNK_VP8X && size >= 10 ) {
+                    in.readFully(chunk, 0, 10);
+                    extended = true;
+                    exif = (chunk[0] & WEBP_FLAG_EXIF) != 0;
+
+                    // the canvas size minus one, 24 bits each
+                    mWidth = 1 + readInt24LE(chunk, 4);
+                    mHeight = 1 + readInt24LE(chunk, 7);
+
+                    if ( !exif ) {
+                        return;
+                    }
+
+                    ExifReader.skipFully(in, padded - 10);
+                }
+                else if ( type == CHUNK_VP8 && size >= 10 && !extended ) {
+                    // the frame tag, the start code and the 14 bit width and height
+                    in.readFully(chunk, 0, 10);
+
+                    if ( (chunk[3] & 0xFF) == 0x9D && chunk[4] == 0x01 && chunk[5] == 0x2A ) {
+                        mWidth = ((chunk[6] & 0xFF) | (chunk[7] & 0xFF) << 8) & 0x3FFF;
+                        mHeight = ((chunk[8] & 0xFF) | (chunk[9] & 0xFF) << 8) & 0x3FFF;
+                    }
+
+                    return;
+                }
+                else if ( type == CHUNK_VP8L && size >= 5 && !extended ) {
+                    // the signature, then the width and height minus one in 14 bits each
+                    in.readFully(chunk, 0, 5);
+
+                    if ( (chunk[0] & 0xFF) == VP8L_SIGNATURE ) {
+                        int bits = (chunk[1] & 0xFF) | (chunk[2] & 0xFF) << 8 | (chunk[3] & 0xFF) << 16 |
+                            (chunk[4] & 0xFF) << 24;
+                        mWidth = 1 + (bits & 0x3FFF);
+                        mHeight = 1 + ((bits >> 14) & 0x3FFF);
+                    }
+
+                    return;
+                }
+                else if ( type == CHUNK_EXIF && exif ) {
+                    if ( size > MAX_METADATA_SIZE ) {
+                        return;
+                    }
+
+                    byte[] tiff = new byte[size];
+                    in.readFully(tiff);
+                    setTiff(tiff);
+                    return;
+                }
+                else {
+                    ExifReader.skipFully(in, padded);
+                }
+            }
+        }
+        catch ( EOFException e ) {
+            // a truncated file still gives whatever came before the end
+        }
+    }
+
+    /**
+     * Finds the Exif item in the meta box and reads it from wherever the iloc box says it is.
+     */
+    private void readHeif(File image) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+
+        try {
+            ByteBuffer meta = readTopLevelBox(file, BOX_META);
+
+            if ( meta == null ) {
+                return;
+            }
+
+            // meta is a full box, its children come after the version and flags
+            meta.position(4);
+
+            ByteBuffer iinf = findBox(meta, BOX_IINF);
+            meta.position(4);
+            ByteBuffer iloc = findBox(meta, BOX_ILOC);
+
+            long exifItem = iinf == null ? -1 : findExifItem(iinf);
+
+            if ( exifItem < 0 || iloc == null ) {
+                return;
+            }
+
+            long[] extent = findItemExtent(iloc, exifItem);
+
+            if ( extent == null || extent[1] < 8 || extent[1] > MAX_METADATA_SIZE || extent[0] + extent[1] > file.length() ) {
+                return;
+            }
+
+            byte[] item = new byte[(int) extent[1]];
+            file.seek(extent[0]);
+            file.readFully(item);
+            mBytesRead += item.length;
+
+            // the item starts with the offset of the tiff header after it, past an Exif header
+            int offset = 4 + ByteBuffer.wrap(item).getInt();
+
+            if ( offset < 4 || offset >= item.length ) {
+                return;
+            }
+
+            byte[] tiff = new byte[item.length - offset];
+            System.arraycopy(item, offset, tiff, 0, tiff.length);
+            setTiff(tiff);
+        }
+        catch ( EOFException | BufferUnderflowException | IllegalArgumentException e ) {
+            // a truncated or malformed file just has no exif
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * The contents of the first top level box of a type, or null if there isn't one.
+     */
+    private ByteBuffer readTopLevelBox(RandomAccessFile file, int type) throws IOException {
+        long length = file.length();
+        long offset = 0;
+        byte[] header = new byte[16];
+
+        while ( offset + 8 <= length ) {
+            file.seek(offset);
+            file.readFully(header, 0, (int) Math.min(header.length, length - offset));
+            mBytesRead += Math.min(header.length, length - offset);
+
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            long size = buffer.getInt(0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+
+            if ( size == 1 ) {
+                size = buffer.getLong(8);
+                headerSize = 16;
+            }
+            else if ( size == 0 ) {
+                size = length - offset;
+            }
+
+            if ( size < headerSize ) {
+                return null;
+            }
+
+            if ( buffer.getInt(4) == type ) {
+                if ( size - headerSize > MAX_METADATA_SIZE || offset + size > length ) {
+                    return null;
+                }
+
+                byte[] contents = new byte[(int) (size - headerSize)];
+                file.seek(offset + headerSize);
+                file.readFully(contents);
+                mBytesRead += contents.length;
+
+                return ByteBuffer.wrap(contents);
+            }
+
+            offset += size;
+        }
+
+        return null;
+    }
+
+    /**
+     * The contents of the next box of a type from the buffer's position, or null if there
+     * isn't one.
+     */
+    private static ByteBuffer findBox(ByteBuffer buffer, int type) {
+        while ( buffer.remaining() >= 8 ) {
+            int start = buffer.position();
+            long size = buffer.getInt() & 0xFFFFFFFFL;
+            int boxType = buffer.getInt();
+            int headerSize = 8;
+
+            if ( size == 1 && buffer.remaining() >= 8 ) {
+                size = buffer.getLong();
+                headerSize = 16;
+            }
+            else if ( size == 0 ) {
+                size = buffer.limit() - start;
+            }
+
+            if ( size < headerSize || size > buffer.limit() - start ) {
+                return null;
+            }
+
+            if ( boxType == type ) {
+                ByteBuffer contents = buffer.duplicate();
+                contents.limit(start + (int) size);
+                contents.position(start + headerSize);
+                buffer.position(start + (int) size);
+                return contents.slice();
+            }
+
+            buffer.position(start + (int) size);
+        }
+
+        return null;
+    }
+
+    /**
+     * The ID of the Exif item in an iinf box, or -1 if there isn't one.
+     */
+    private static long findExifItem(ByteBuffer iinf) {
+        int version = iinf.get();
+        iinf.position(4);
+        long count = version == 0 ? iinf.getShort() & 0xFFFF : iinf.getInt() & 0xFFFFFFFFL;
+
+        for ( long i = 0; i < count; ++i ) {
+            ByteBuffer infe = findBox(iinf, BOX_INFE);
+
+            if ( infe == null ) {
+                return -1;
+            }
+
+            // only version 2 and later entries have an item type, which is all HEIF allows
+            int entryVersion = infe.get();
+            infe.position(4);
+
+            if ( entryVersion < 2 || infe.remaining() < 8 ) {
+                continue;
+            }
+
+            long id = entryVersion == 2 ? infe.getShort() & 0xFFFF : infe.getInt() & 0xFFFFFFFFL;
+
+            // the protection index
+            infe.getShort();
+
+            if ( infe.getInt() == ITEM_TYPE_EXIF ) {
+                return id;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * The file offset and length of an item stored in the file, from an iloc box, or null if
+     * it isn't there or is stored in pieces or another way.
+     */
+    private static long[] findItemExtent(ByteBuffer iloc, long item) {
+        int version = iloc.get();
+        iloc.position(4);
+
+        int sizes = iloc.get() & 0xFF;
+        int offsetSize = sizes >> 4;
+        int lengthSize = sizes & 0x0F;
+
+        sizes = iloc.get() & 0xFF;
+        int baseOffsetSize = sizes >> 4;
+        int indexSize = version == 1 || version == 2 ? sizes & 0x0F : 0;
+
+        long count = version < 2 ? iloc.getShort() & 0xFFFF : iloc.getInt() & 0xFFFFFFFFL;
+
+        for ( long i = 0; i < count; ++i ) {
+            long id = version < 2 ? iloc.getShort() & 0xFFFF : iloc.getInt() & 0xFFFFFFFFL;
+            int constructionMethod = version == 1 || version == 2 ? iloc.getShort() & 0x0F : 0;
+
+            // the data reference index
+            iloc.getShort();
+
+            long baseOffset = readSized(iloc, baseOffsetSize);
+            int extentCount = iloc.getShort() & 0xFFFF;
+            long offset = 0;
+            long length = 0;
+
+            for ( int j = 0; j < extentCount; ++j ) {
+                readSized(iloc, indexSize);
+                offset = readSized(iloc, offsetSize);
+                length = readSized(iloc, lengthSize);
+            }
+
+            if ( id == item ) {
+                // only file offsets, the idat box and other items aren't supported
+                return constructionMethod == 0 && extentCount == 1 ? new long[] { baseOffset + offset, length } : null;
+            }
+        }
+
+        return null;
+    }
+
+    private static long readSized(ByteBuffer buffer, int size) {
+        switch ( size ) {
+            case 4:
+                return buffer.getInt() & 0xFFFFFFFFL;
+            case 8:
+                return buffer.getLong();
+            default:
+                return 0;
+        }
+    }
+
+    private static int readInt24LE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16;
+    }
+
+    private void setTiff(byte[] tiff) {
+        // some writers keep the Exif header jpegs have in front of the tiff
+        if ( tiff.length > ExifReader.EXIF_HEADER.length && ExifReader.isExifHeader(tiff) ) {
+            byte[] stripped = new byte[tiff.length - ExifReader.EXIF_HEADER.length];
+            System.arraycopy(tiff, ExifReader.EXIF_HEADER.length, stripped, 0, stripped.length);
+            tiff = stripped;
+        }
+
+        mTiff = tiff;
+        mRecord = ExifReader.parse(ByteBuffer.wrap(mTiff));
+    }
+
+    private void readSize(byte[] signature, int length) {
+        ByteBuffer header = ByteBuffer.wrap(signature, 0, length);
+
+        if ( MIME_TYPE_PNG.equals(mMimeType) && length >= 24 ) {
+            // IHDR is always the first chunk, big endian width and height right after its type
+            mWidth = header.getInt(16);
+            mHeight = header.getInt(20);
+        }
+        else if ( MIME_TYPE_GIF.equals(mMimeType) && length >= 10 ) {
+            // the logical screen size, little endian
+            mWidth = (signature[6] & 0xFF) | ((signature[7] & 0xFF) << 8);
+            mHeight = (signature[8] & 0xFF) | ((signature[9] & 0xFF) << 8);
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT, JPG and DAC which share the range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    /**
+     * Counts the bytes pulled from the underlying stream. Skips aren't counted, a file stream
+     * seeks past them without reading.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+
+            if ( value >= 0 ) {
+                mCount++;
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+
+            if ( count > 0 ) {
+                mCount += count;
+            }
+
+            return count;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
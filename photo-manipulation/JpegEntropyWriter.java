@@ -0,0 +1,163 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Huffman codes quantized 8x8 blocks into the entropy coded segment of a baseline jpeg. A writer
+ * made with {@link #counting()} writes nothing and only tallies the symbols each table would
+ * be asked for, so optimal tables can be built in a first pass.
+ */
+final class JpegEntropyWriter {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int SYMBOL_EOB = 0x00;
+
+    private static final int SYMBOL_ZRL = 0xF0;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final OutputStream mOutput;
+
+    private final byte[] mBuffer;
+
+    private int mBufferLength;
+
+    private int mBits;
+
+    private int mBitCount;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    JpegEntropyWriter(OutputStream output) {
+        mOutput = output;
+        mBuffer = output == null ? null : new byte[BUFFER_SIZE];
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    static JpegEntropyWriter counting() {
+        return new JpegEntropyWriter(null);
+    }
+
+    // ------------------------------------------------------------------------
+    // Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Codes one block given in zigzag order and returns its DC value for the next block's
+     * prediction. When counting, the tables are ignored and the frequencies are updated.
+     */
+    int writeBlock(int[] zigzag, int previousDC, JpegHuffmanTable dcTable, JpegHuffmanTable acTable,
+                   long[] dcFrequencies, long[] acFrequencies) throws IOException {
+        int dc = zigzag[0];
+        writeValue(dc - previousDC, 0, dcTable, dcFrequencies);
+
+        int run = 0;
+        for ( int i = 1; i < 64; ++i ) {
+            int coefficient = zigzag[i];
+
+            if ( coefficient == 0 ) {
+                run++;
+                continue;
+            }
+
+            while ( run > 15 ) {
+                writeSymbol(SYMBOL_ZRL, acTable, acFrequencies);
+                run -= 16;
+            }
+
+            writeValue(coefficient, run << 4, acTable, acFrequencies);
+            run = 0;
+        }
+
+        if ( run > 0 ) {
+            writeSymbol(SYMBOL_EOB, acTable, acFrequencies);
+        }
+
+        return dc;
+    }
+
+    /**
+     * Pads the last byte with ones and writes out everything buffered.
+     */
+    void flush() throws IOException {
+        if ( mOutput == null ) {
+            return;
+        }
+
+        if ( mBitCount > 0 ) {
+            writeBits(0x7F, 8 - mBitCount);
+        }
+
+        mOutput.write(mBuffer, 0, mBufferLength);
+        mBufferLength = 0;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Writes the code for the value's size category (combined with a zero run for AC), then the
+     * value's bits, one's complemented if it's negative.
+     */
+    private void writeValue(int value, int run, JpegHuffmanTable table, long[] frequencies) throws IOException {
+        int magnitude = value < 0 ? -value : value;
+        int size = 32 - Integer.numberOfLeadingZeros(magnitude);
+
+        writeSymbol(run | size, table, frequencies);
+
+        if ( size > 0 && mOutput != null ) {
+            writeBits(value < 0 ? value - 1 : value, size);
+        }
+    }
+
+    private void writeSymbol(int symbol, JpegHuffmanTable table, long[] frequencies) throws IOException {
+        if ( mOutput == null ) {
+            frequencies[symbol]++;
+            return;
+        }
+
+        writeBits(table.codes[symbol], table.lengths[symbol]);
+    }
+
+    private void writeBits(int value, int count) throws IOException {
+        mBits = (mBits << count) | (value & ((1 << count) - 1));
+        mBitCount += count;
+
+        while ( mBitCount >= 8 ) {
+            int b = (mBits >> (mBitCount - 8)) & 0xFF;
+            writeByte(b);
+
+            // a 0xFF in entropy coded data has to be followed by a stuffed zero
+            if ( b == 0xFF ) {
+                writeByte(0);
+            }
+
+            mBitCount -= 8;
+        }
+
+        mBits &= (1 << mBitCount) - 1;
+    }
+
+    private void writeByte(int b) throws IOException {
+        if ( mBufferLength == mBuffer.length ) {
+            mOutput.write(mBuffer, 0, mBufferLength);
+            mBufferLength = 0;
+        }
+
+        mBuffer[mBufferLength++] = (byte) b;
+    }
+}
@@ -0,0 +1,166 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.Arrays;
+
+/**
+ * A jpeg Huffman table in both the form it's stored in a DHT segment (code counts per length
+ * and the symbols in code order) and the form needed to encode (a code and length per symbol).
+ */
+final class JpegHuffmanTable {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final int MAX_CODE_LENGTH = 16;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * The number of codes of each length from 1 to 16 bits.
+     */
+    final int[] bits;
+
+    final int[] values;
+
+    final int[] codes = new int[256];
+
+    final int[] lengths = new int[256];
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    JpegHuffmanTable(int[] bits, int[] values) {
+        this.bits = bits;
+        this.values = values;
+
+        // Annex C, codes of each length count up from one more than the last, shifted left
+        int code = 0;
+        int index = 0;
+
+        for ( int length = 1; length <= MAX_CODE_LENGTH; ++length ) {
+            for ( int i = 0; i < bits[length - 1]; ++i ) {
+                codes[values[index]] = code;
+                lengths[values[index]] = length;
+                index++;
+                code++;
+            }
+            code <<= 1;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Builds the smallest table for the symbol counts that still fits in 16 bit codes, the way
+     * Annex K.2 (and libjpeg's optimize option) does it.
+     */
+    static JpegHuffmanTable optimal(long[] frequencies) {
+        long[] frequency = Arrays.copyOf(frequencies, 257);
+        int[] codeSize = new int[257];
+        int[] others = new int[257];
+        Arrays.fill(others, -1);
+
+        // a reserved symbol with the lowest count keeps any real code from being all ones
+        frequency[256] = 1;
+
+        // a table needs at least one real code even if nothing uses it
+        boolean empty = true;
+        for ( int i = 0; i < 256 && empty; ++i ) {
+            empty = frequency[i] == 0;
+        }
+        if ( empty ) {
+            frequency[0] = 1;
+        }
+
+        while ( true ) {
+            // the two least frequent symbols, the larger index winning ties
+            int c1 = -1;
+            long lowest = Long.MAX_VALUE;
+            for ( int i = 0; i <= 256; ++i ) {
+                if ( frequency[i] != 0 && frequency[i] <= lowest ) {
+                    lowest = frequency[i];
+                    c1 = i;
+                }
+            }
+
+            int c2 = -1;
+            lowest = Long.MAX_VALUE;
+            for ( int i = 0; i <= 256; ++i ) {
+                if ( frequency[i] != 0 && frequency[i] <= lowest && i != c1 ) {
+                    lowest = frequency[i];
+                    c2 = i;
+                }
+            }
+
+            if ( c2 < 0 ) {
+                break;
+            }
+
+            frequency[c1] += frequency[c2];
+            frequency[c2] = 0;
+
+            codeSize[c1]++;
+            while ( others[c1] >= 0 ) {
+                c1 = others[c1];
+                codeSize[c1]++;
+            }
+
+            others[c1] = c2;
+
+            codeSize[c2]++;
+            while ( others[c2] >= 0 ) {
+                c2 = others[c2];
+                codeSize[c2]++;
+            }
+        }
+
+        int[] countOfLength = new int[33];
+        for ( int i = 0; i <= 256; ++i ) {
+            if ( codeSize[i] > 0 ) {
+                countOfLength[codeSize[i]]++;
+            }
+        }
+
+        // move codes longer than 16 bits up the tree until they fit
+        for ( int i = 32; i > MAX_CODE_LENGTH; --i ) {
+            while ( countOfLength[i] > 0 ) {
+                int j = i - 2;
+                while ( countOfLength[j] == 0 ) {
+                    j--;
+                }
+
+                countOfLength[i] -= 2;
+                countOfLength[i - 1]++;
+                countOfLength[j + 1] += 2;
+                countOfLength[j]--;
+            }
+        }
+
+        // drop the reserved symbol, it always has the longest code
+        int longest = MAX_CODE_LENGTH;
+        while ( countOfLength[longest] == 0 ) {
+            longest--;
+        }
+        countOfLength[longest]--;
+
+        int[] bits = Arrays.copyOfRange(countOfLength, 1, MAX_CODE_LENGTH + 1);
+
+        int count = 0;
+        int[] values = new int[256];
+        for ( int length = 1; length <= 32; ++length ) {
+            for ( int symbol = 0; symbol < 256; ++symbol ) {
+                if ( codeSize[symbol] == length ) {
+                    values[count++] = symbol;
+                }
+            }
+        }
+
+        return new JpegHuffmanTable(bits, Arrays.copyOf(values, count));
+    }
+}
@@ -0,0 +1,339 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A baseline jpeg encoder that takes the image a few rows at a time, so an image can be written
+ * without ever holding all of its pixels. Only 16 rows of converted pixels are kept, one row of
+ * MCUs, whatever size the caller hands rows over in.
+ *
+ * The output is YCbCr 4:2:0 with the standard Huffman tables, the same layout Bitmap.compress
+ * writes. It's plain Java so it also runs off device.
+ */
+public class JpegStreamEncoder {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final int MCU_SIZE = 16;
+
+    /**
+     * COSINES[u * 8 + x] = C(u) / 2 * cos((2x + 1) * u * PI / 16), so the 2D transform is two
+     * passes of multiplying by this matrix.
+     */
+    private static final float[] COSINES = new float[64];
+
+    static {
+        for ( int u = 0; u < 8; ++u ) {
+            double scale = u == 0 ? 1 / Math.sqrt(2) / 2 : 0.5;
+
+            for ( int x = 0; x < 8; ++x ) {
+                COSINES[u * 8 + x] = (float) (scale * Math.cos((2 * x + 1) * u * Math.PI / 16));
+            }
+        }
+    }
+
+    private static final JpegHuffmanTable DC_LUMINANCE =
+        new JpegHuffmanTable(JpegTables.DC_LUMINANCE_BITS, JpegTables.DC_LUMINANCE_VALUES);
+
+    private static final JpegHuffmanTable AC_LUMINANCE =
+        new JpegHuffmanTable(JpegTables.AC_LUMINANCE_BITS, JpegTables.AC_LUMINANCE_VALUES);
+
+    private static final JpegHuffmanTable DC_CHROMINANCE =
+        new JpegHuffmanTable(JpegTables.DC_CHROMINANCE_BITS, JpegTables.DC_CHROMINANCE_VALUES);
+
+    private static final JpegHuffmanTable AC_CHROMINANCE =
+        new JpegHuffmanTable(JpegTables.AC_CHROMINANCE_BITS, JpegTables.AC_CHROMINANCE_VALUES);
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final OutputStream mOutput;
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private final int mPaddedWidth;
+
+    private final int[] mLuminanceQuantization;
+
+    private final int[] mChrominanceQuantization;
+
+    /**
+     * The current row of MCUs, level shifted. Chroma is summed over each 2x2 block and averaged
+     * when the row is encoded.
+     */
+    private final float[] mY;
+
+    private final float[] mCb;
+
+    private final float[] mCr;
+
+    private final int[] mLastRow;
+
+    private final float[] mBlock = new float[64];
+
+    private final float[] mTransformed = new float[64];
+
+    private final int[] mQuantized = new int[64];
+
+    private final JpegEntropyWriter mWriter;
+
+    private int mPreviousY;
+
+    private int mPreviousCb;
+
+    private int mPreviousCr;
+
+    private int mRowsInMcu;
+
+    private int mRowsWritten;
+
+    private boolean mFinished;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    /**
+     * Writes the headers straight away. Rows then have to add up to exactly {@code height}
+     * before {@link #finish()}.
+     */
+    public JpegStreamEncoder(OutputStream output, int width, int height, int quality) throws IOException {
+        if ( width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF ) {
+            throw new IllegalArgumentException("can't encode a " + width + "x" + height + " jpeg");
+        }
+
+        mOutput = output;
+        mWidth = width;
+        mHeight = height;
+        mPaddedWidth = (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+
+        mLuminanceQuantization = JpegTables.scaleQuantization(JpegTables.LUMINANCE_QUANTIZATION, quality);
+        mChrominanceQuantization = JpegTables.scaleQuantization(JpegTables.CHROMINANCE_QUANTIZATION, quality);
+
+        mY = new float[mPaddedWidth * MCU_SIZE];
+        mCb = new float[mPaddedWidth / 2 * MCU_SIZE / 2];
+        mCr = new float[mPaddedWidth / 2 * MCU_SIZE / 2];
+        mLastRow = new int[width];
+        mWriter = new JpegEntropyWriter(output);
+
+        writeHeaders();
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Adds the next {@code rowCount} rows of ARGB pixels, {@code stride} ints apart starting at
+     * {@code offset}. Alpha is ignored.
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int rowCount) throws IOException {
+        if ( mRowsWritten + rowCount > mHeight ) {
+            throw new IllegalStateException("more rows than the " + mHeight + " the image has");
+        }
+
+        for ( int row = 0; row < rowCount; ++row ) {
+            int rowOffset = offset + row * stride;
+            addRow(pixels, rowOffset);
+            mRowsWritten++;
+
+            if ( mRowsWritten == mHeight ) {
+                System.arraycopy(pixels, rowOffset, mLastRow, 0, mWidth);
+            }
+
+            if ( mRowsInMcu == MCU_SIZE ) {
+                encodeMcuRow();
+            }
+        }
+    }
+
+    /**
+     * Encodes what's left and writes the end of image marker. The output stream isn't closed.
+     */
+    public void finish() throws IOException {
+        if ( mFinished ) {
+            return;
+        }
+
+        if ( mRowsWritten != mHeight ) {
+            throw new IllegalStateException(mRowsWritten + " rows written, expected " + mHeight);
+        }
+
+        if ( mRowsInMcu > 0 ) {
+            // pad the last row of MCUs by repeating the last row of pixels
+            while ( mRowsInMcu < MCU_SIZE ) {
+                addRow(mLastRow, 0);
+            }
+
+            encodeMcuRow();
+        }
+
+        mWriter.flush();
+        mOutput.write(0xFF);
+        mOutput.write(0xD9);
+        mOutput.flush();
+
+        mFinished = true;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private void addRow(int[] pixels, int offset) {
+        int rowStart = mRowsInMcu * mPaddedWidth;
+        int chromaStart = mRowsInMcu / 2 * mPaddedWidth / 2;
+
+        if ( (mRowsInMcu & 1) == 0 ) {
+            Arrays.fill(mCb, chromaStart, chromaStart + mPaddedWidth / 2, 0);
+            Arrays.fill(mCr, chromaStart, chromaStart + mPaddedWidth / 2, 0);
+        }
+
+        for ( int x = 0; x < mPaddedWidth; ++x ) {
+            // repeat the last column into the padding
+            int pixel = pixels[offset + Math.min(x, mWidth - 1)];
+
+            int r = (pixel >> 16) & 0xFF;
+            int g = (pixel >> 8) & 0xFF;
+            int b = pixel & 0xFF;
+
+            mY[rowStart + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+            mCb[chromaStart + x / 2] += -0.168736f * r - 0.331264f * g + 0.5f * b;
+            mCr[chromaStart + x / 2] += 0.5f * r - 0.418688f * g - 0.081312f * b;
+        }
+
+        mRowsInMcu++;
+    }
+
+    private void encodeMcuRow() throws IOException {
+        int chromaWidth = mPaddedWidth / 2;
+
+        for ( int i = 0; i < mCb.length; ++i ) {
+            mCb[i] *= 0.25f;
+            mCr[i] *= 0.25f;
+        }
+
+        for ( int x = 0; x < mPaddedWidth; x += MCU_SIZE ) {
+            mPreviousY = encodeBlock(mY, x, mPaddedWidth, mLuminanceQuantization, mPreviousY, DC_LUMINANCE, AC_LUMINANCE);
+            mPreviousY = encodeBlock(mY, x + 8, mPaddedWidth, mLuminanceQuantization, mPreviousY, DC_LUMINANCE, AC_LUMINANCE);
+            mPreviousY = encodeBlock(mY, 8 * mPaddedWidth + x, mPaddedWidth, mLuminanceQuantization, mPreviousY, DC_LUMINANCE, AC_LUMINANCE);
+            mPreviousY = encodeBlock(mY, 8 * mPaddedWidth + x + 8, mPaddedWidth, mLuminanceQuantization, mPreviousY, DC_LUMINANCE, AC_LUMINANCE);
+
+            mPreviousCb = encodeBlock(mCb, x / 2, chromaWidth, mChrominanceQuantization, mPreviousCb, DC_CHROMINANCE, AC_CHROMINANCE);
+            mPreviousCr = encodeBlock(mCr, x / 2, chromaWidth, mChrominanceQuantization, mPreviousCr, DC_CHROMINANCE, AC_CHROMINANCE);
+        }
+
+        mRowsInMcu = 0;
+    }
+
+    /**
+     * Transforms, quantizes and entropy codes one 8x8 block, returning its DC value for the
+     * next block's prediction.
+     */
+    private int encodeBlock(float[] plane, int offset, int stride, int[] quantization, int previousDC,
+                            JpegHuffmanTable dcTable, JpegHuffmanTable acTable) throws IOException {
+        float[] block = mBlock;
+        float[] transformed = mTransformed;
+
+        // rows first, then columns
+        for ( int y = 0; y < 8; ++y ) {
+            int row = offset + y * stride;
+
+            for ( int u = 0; u < 8; ++u ) {
+                float sum = 0;
+                for ( int x = 0; x < 8; ++x ) {
+                    sum += plane[row + x] * COSINES[u * 8 + x];
+                }
+                block[y * 8 + u] = sum;
+            }
+        }
+
+        for ( int u = 0; u < 8; ++u ) {
+            for ( int v = 0; v < 8; ++v ) {
+                float sum = 0;
+                for ( int y = 0; y < 8; ++y ) {
+                    sum += block[y * 8 + u] * COSINES[v * 8 + y];
+                }
+                transformed[v * 8 + u] = sum;
+            }
+        }
+
+        for ( int i = 0; i < 64; ++i ) {
+            int natural = JpegTables.ZIGZAG[i];
+            mQuantized[i] = Math.round(transformed[natural] / quantization[natural]);
+        }
+
+        return mWriter.writeBlock(mQuantized, previousDC, dcTable, acTable, null, null);
+    }
+
+    private void writeHeaders() throws IOException {
+        OutputStream out = mOutput;
+
+        // SOI and a JFIF APP0 with no density or thumbnail
+        out.write(new byte[] {
+            (byte) 0xFF, (byte) 0xD8,
+            (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0
+        });
+
+        // DQT, both tables in zigzag order
+        out.write(0xFF);
+        out.write(0xDB);
+        writeShort(2 + 2 * 65);
+        out.write(0);
+        for ( int i = 0; i < 64; ++i ) {
+            out.write(mLuminanceQuantization[JpegTables.ZIGZAG[i]]);
+        }
+        out.write(1);
+        for ( int i = 0; i < 64; ++i ) {
+            out.write(mChrominanceQuantization[JpegTables.ZIGZAG[i]]);
+        }
+
+        // SOF0, Y sampled 2x2 and Cb and Cr 1x1
+        out.write(0xFF);
+        out.write(0xC0);
+        writeShort(17);
+        out.write(8);
+        writeShort(mHeight);
+        writeShort(mWidth);
+        out.write(3);
+        out.write(new byte[] { 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1 });
+
+        // DHT
+        out.write(0xFF);
+        out.write(0xC4);
+        writeShort(2 + 4 * 17 + JpegTables.DC_LUMINANCE_VALUES.length + JpegTables.AC_LUMINANCE_VALUES.length +
+                   JpegTables.DC_CHROMINANCE_VALUES.length + JpegTables.AC_CHROMINANCE_VALUES.length);
+        writeHuffmanTable(0x00, DC_LUMINANCE);
+        writeHuffmanTable(0x10, AC_LUMINANCE);
+        writeHuffmanTable(0x01, DC_CHROMINANCE);
+        writeHuffmanTable(0x11, AC_CHROMINANCE);
+
+        // SOS, every component in one scan with the full spectrum
+        out.write(0xFF);
+        out.write(0xDA);
+        writeShort(12);
+        out.write(new byte[] { 3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0 });
+    }
+
+    private void writeHuffmanTable(int classAndID, JpegHuffmanTable table) throws IOException {
+        mOutput.write(classAndID);
+        for ( int count : table.bits ) {
+            mOutput.write(count);
+        }
+        for ( int value : table.values ) {
+            mOutput.write(value);
+        }
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOutput.write((value >> 8) & 0xFF);
+        mOutput.write(value & 0xFF);
+    }
+}
@@ -0,0 +1,870 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Applies an EXIF orientation to a jpeg without decoding its pixels, the way jpegtran does. The
+ * quantized DCT coefficients are read out of the entropy coded data, the blocks are moved and
+ * transposed and their coefficients' signs flipped as needed, and everything is Huffman coded
+ * again. The coefficients are kept exactly, so no quality is lost, nothing builds up over
+ * repeated rotations and the file stays about the same size. The decoded pixels can still
+ * differ slightly from rotating a decode of the original, since the IDCT rounds differently
+ * for transposed blocks.
+ *
+ * Only baseline and extended Huffman coded jpegs with all components in a single scan are
+ * handled, which is what cameras write. The edges that get moved to the top or left also have to
+ * fall on an MCU boundary, otherwise the padding blocks would end up inside the image. Anything
+ * else is left alone and {@link #transform} returns false so the caller can fall back to
+ * re-encoding.
+ */
+public class LosslessJpegTransform {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final int MARKER_SOF0 = 0xC0;
+
+    private static final int MARKER_SOF1 = 0xC1;
+
+    private static final int MARKER_DHT = 0xC4;
+
+    private static final int MARKER_DQT = 0xDB;
+
+    private static final int MARKER_DRI = 0xDD;
+
+    private static final int MARKER_COM = 0xFE;
+
+    private static final int MARKER_APP0 = 0xE0;
+
+    private static final int MARKER_APP15 = 0xEF;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final byte[] mData;
+
+    private final int mOrientation;
+
+    private final boolean mTransposed;
+
+    /**
+     * The APPn and COM segments, markers included, copied to the output as they are.
+     */
+    private final ArrayList<byte[]> mSegments = new ArrayList<>();
+
+    private final int[][] mQuantization = new int[4][];
+
+    private final boolean[] mSixteenBitQuantization = new boolean[4];
+
+    private final HuffmanDecoder[][] mHuffmanTables = new HuffmanDecoder[2][4];
+
+    private Component[] mComponents;
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private int mMaxH;
+
+    private int mMaxV;
+
+    private int mMcusX;
+
+    private int mMcusY;
+
+    private int mRestartInterval;
+
+    private int mPosition;
+
+    private int mBitBuffer;
+
+    private int mBitsLeft;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private LosslessJpegTransform(byte[] data, int orientation) {
+        mData = data;
+        mOrientation = orientation;
+        mTransposed = ImageGeometry.isTransposed(orientation);
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Writes {@code source} with the orientation applied to {@code destination}. Returns false,
+     * without creating the destination, if the jpeg can't be transformed losslessly.
+     */
+    public static boolean transform(File source, File destination, int orientation) throws IOException {
+        if ( orientation < 2 || orientation > 8 ) {
+            return false;
+        }
+
+        LosslessJpegTransform transform = new LosslessJpegTransform(readFile(source), orientation);
+
+        if ( !transform.decode() || !transform.isAligned() ) {
+            return false;
+        }
+
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE);
+        boolean written = false;
+
+        try {
+            transform.write(output);
+            written = true;
+        }
+        finally {
+            output.close();
+
+            if ( !written ) {
+                destination.delete();
+            }
+        }
+
+        return true;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try {
+            if ( input.length() > Integer.MAX_VALUE ) {
+                throw new IOException("too large to transform: " + file);
+            }
+
+            byte[] data = new byte[(int) input.length()];
+            input.readFully(data);
+            return data;
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Decoding
+    // ------------------------------------------------------------------------
+
+    /**
+     * Reads the headers and the coefficients. Returns false if the jpeg uses anything this
+     * class doesn't handle.
+     */
+    private boolean decode() throws IOException {
+        if ( mData.length < 4 || (mData[0] & 0xFF) != 0xFF || (mData[1] & 0xFF) != 0xD8 ) {
+            return false;
+        }
+
+        mPosition = 2;
+
+        while ( true ) {
+            int marker = nextMarker();
+
+            if ( marker < 0 || marker == 0xD9 ) {
+                return false;
+            }
+
+            // markers without a payload
+            if ( marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7) ) {
+                continue;
+            }
+
+            int start = mPosition - 2;
+            int length = readShort(mPosition);
+            int end = mPosition + length;
+
+            if ( length < 2 || end > mData.length ) {
+                throw new IOException("corrupt segment");
+            }
+
+            mPosition += 2;
+
+            if ( marker == MARKER_SOF0 || marker == MARKER_SOF1 ) {
+                if ( !readFrame() ) {
+                    return false;
+                }
+            }
+            else if ( marker == MARKER_DHT ) {
+                readHuffmanTables(end);
+            }
+            else if ( marker == MARKER_DQT ) {
+                readQuantizationTables(end);
+            }
+            else if ( marker == MARKER_DRI ) {
+                mRestartInterval = readShort(mPosition);
+            }
+            else if ( marker == 0xDA ) {
+                return mComponents != null && readScan();
+            }
+            else if ( marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC ) {
+                // progressive, lossless, hierarchical or arithmetic coded
+                return false;
+            }
+            else if ( (marker >= MARKER_APP0 && marker <= MARKER_APP15) || marker == MARKER_COM ) {
+                byte[] segment = new byte[end - start];
+                System.arraycopy(mData, start, segment, 0, segment.length);
+                mSegments.add(segment);
+            }
+
+            mPosition = end;
+        }
+    }
+
+    private boolean readFrame() {
+        int precision = mData[mPosition] & 0xFF;
+        mHeight = readShort(mPosition + 1);
+        mWidth = readShort(mPosition + 3);
+        int count = mData[mPosition + 5] & 0xFF;
+
+        // the height can be left to a DNL marker after the first scan, which is rare enough to skip
+        if ( precision != 8 || mWidth == 0 || mHeight == 0 || count < 1 || count > 4 ) {
+            return false;
+        }
+
+        mComponents = new Component[count];
+
+        for ( int i = 0; i < count; ++i ) {
+            int offset = mPosition + 6 + i * 3;
+            Component component = new Component();
+            component.id = mData[offset] & 0xFF;
+            component.h = count == 1 ? 1 : (mData[offset + 1] & 0xFF) >> 4;
+            component.v = count == 1 ? 1 : mData[offset + 1] & 0x0F;
+            component.quantizationTable = mData[offset + 2] & 0x03;
+
+            if ( component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4 ) {
+                return false;
+            }
+
+            mMaxH = Math.max(mMaxH, component.h);
+            mMaxV = Math.max(mMaxV, component.v);
+            mComponents[i] = component;
+        }
+
+        mMcusX = (mWidth + 8 * mMaxH - 1) / (8 * mMaxH);
+        mMcusY = (mHeight + 8 * mMaxV - 1) / (8 * mMaxV);
+
+        for ( Component component : mComponents ) {
+            component.blocksX = mMcusX * component.h;
+            component.blocksY = mMcusY * component.v;
+            component.coefficients = new short[component.blocksX * component.blocksY * 64];
+        }
+
+        return true;
+    }
+
+    private void readQuantizationTables(int end) {
+        int position = mPosition;
+
+        while ( position < end ) {
+            int precisionAndID = mData[position++] & 0xFF;
+            boolean sixteenBit = (precisionAndID >> 4) != 0;
+            int id = precisionAndID & 0x03;
+
+            int[] table = new int[64];
+            for ( int i = 0; i < 64; ++i ) {
+                if ( sixteenBit ) {
+                    table[JpegTables.ZIGZAG[i]] = readShort(position);
+                    position += 2;
+                }
+                else {
+                    table[JpegTables.ZIGZAG[i]] = mData[position++] & 0xFF;
+                }
+            }
+
+            mQuantization[id] = table;
+            mSixteenBitQuantization[id] = sixteenBit;
+        }
+    }
+
+    private void readHuffmanTables(int end) throws IOException {
+        int position = mPosition;
+
+        while ( position < end ) {
+            int classAndID = mData[position++] & 0xFF;
+
+            int[] bits = new int[16];
+            int total = 0;
+            for ( int i = 0; i < 16; ++i ) {
+                bits[i] = mData[position++] & 0xFF;
+                total += bits[i];
+            }
+
+            if ( total > 256 || position + total > end ) {
+                throw new IOException("corrupt huffman table");
+            }
+
+            int[] values = new int[total];
+            for ( int i = 0; i < total; ++i ) {
+                values[i] = mData[position++] & 0xFF;
+            }
+
+            mHuffmanTables[(classAndID >> 4) & 0x01][classAndID & 0x03] = new HuffmanDecoder(bits, values);
+        }
+    }
+
+    private boolean readScan() throws IOException {
+        int count = mData[mPosition] & 0xFF;
+
+        // every component has to be in this one scan
+        if ( count != mComponents.length ) {
+            return false;
+        }
+
+        for ( int i = 0; i < count; ++i ) {
+            int id = mData[mPosition + 1 + i * 2] & 0xFF;
+            int tables = mData[mPosition + 2 + i * 2] & 0xFF;
+
+            Component component = mComponents[i];
+
+            if ( component.id != id ) {
+                return false;
+            }
+
+            component.dcTable = mHuffmanTables[0][(tables >> 4) & 0x03];
+            component.acTable = mHuffmanTables[1][tables & 0x03];
+
+            if ( component.dcTable == null || component.acTable == null ||
+                mQuantization[component.quantizationTable] == null ) {
+                return false;
+            }
+        }
+
+        int spectralStart = mData[mPosition + 1 + count * 2] & 0xFF;
+        int spectralEnd = mData[mPosition + 2 + count * 2] & 0xFF;
+        int approximation = mData[mPosition + 3 + count * 2] & 0xFF;
+
+        if ( spectralStart != 0 || spectralEnd != 63 || approximation != 0 ) {
+            return false;
+        }
+
+        mPosition += 4 + count * 2;
+
+        if ( mComponents.length == 1 ) {
+            readSingleComponent(mComponents[0]);
+        }
+        else {
+            readInterleaved();
+        }
+
+        return true;
+    }
+
+    private void readInterleaved() throws IOException {
+        int mcu = 0;
+
+        for ( int mcuY = 0; mcuY < mMcusY; ++mcuY ) {
+            for ( int mcuX = 0; mcuX < mMcusX; ++mcuX ) {
+                restartIfNeeded(mcu++);
+
+                for ( Component component : mComponents ) {
+                    for ( int v = 0; v < component.v; ++v ) {
+                        for ( int h = 0; h < component.h; ++h ) {
+                            int block = (mcuY * component.v + v) * component.blocksX + mcuX * component.h + h;
+                            readBlock(component, block * 64);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A scan with one component isn't interleaved, every block is its own MCU and only the
+     * blocks inside the image are coded.
+     */
+    private void readSingleComponent(Component component) throws IOException {
+        int blocksX = (mWidth + 7) / 8;
+        int blocksY = (mHeight + 7) / 8;
+        int mcu = 0;
+
+        for ( int y = 0; y < blocksY; ++y ) {
+            for ( int x = 0; x < blocksX; ++x ) {
+                restartIfNeeded(mcu++);
+                readBlock(component, (y * component.blocksX + x) * 64);
+            }
+        }
+    }
+
+    private void restartIfNeeded(int mcu) throws IOException {
+        if ( mRestartInterval == 0 || mcu == 0 || mcu % mRestartInterval != 0 ) {
+            return;
+        }
+
+        // drop the padding bits and step over the RSTn marker
+        mBitsLeft = 0;
+
+        int marker = nextMarker();
+        if ( marker < 0xD0 || marker > 0xD7 ) {
+            throw new IOException("missing restart marker");
+        }
+
+        for ( Component component : mComponents ) {
+            component.previousDC = 0;
+        }
+    }
+
+    private void readBlock(Component component, int offset) throws IOException {
+        short[] coefficients = component.coefficients;
+
+        int size = component.dcTable.decode(this);
+        int dc = component.previousDC + (size == 0 ? 0 : extend(readBits(size), size));
+        component.previousDC = dc;
+        coefficients[offset] = (short) dc;
+
+        for ( int k = 1; k < 64; ) {
+            int symbol = component.acTable.decode(this);
+            int run = symbol >> 4;
+            size = symbol & 0x0F;
+
+            if ( size == 0 ) {
+                // end of block, or sixteen zeros
+                if ( run != 15 ) {
+                    break;
+                }
+
+                k += 16;
+                continue;
+            }
+
+            k += run;
+
+            if ( k > 63 ) {
+                throw new IOException("corrupt block");
+            }
+
+            coefficients[offset + JpegTables.ZIGZAG[k]] = (short) extend(readBits(size), size);
+            k++;
+        }
+    }
+
+    private int readBit() {
+        if ( mBitsLeft == 0 ) {
+            mBitBuffer = readEntropyByte();
+            mBitsLeft = 8;
+        }
+
+        mBitsLeft--;
+        return (mBitBuffer >> mBitsLeft) & 1;
+    }
+
+    private int readBits(int count) {
+        int value = 0;
+
+        for ( int i = 0; i < count; ++i ) {
+            value = (value << 1) | readBit();
+        }
+
+        return value;
+    }
+
+    /**
+     * The next byte of entropy coded data with stuffing removed. Hitting a marker gives zeros
+     * without moving past it.
+     */
+    private int readEntropyByte() {
+        if ( mPosition >= mData.length ) {
+            return 0;
+        }
+
+        int value = mData[mPosition] & 0xFF;
+
+        if ( value == 0xFF ) {
+            int next = mPosition + 1 < mData.length ? mData[mPosition + 1] & 0xFF : -1;
+
+            if ( next != 0 ) {
+                return 0;
+            }
+
+            mPosition += 2;
+            return 0xFF;
+        }
+
+        mPosition++;
+        return value;
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    /**
+     * Skips to the next marker and returns it, or -1 at the end of the data.
+     */
+    private int nextMarker() {
+        while ( mPosition < mData.length && (mData[mPosition] & 0xFF) != 0xFF ) {
+            mPosition++;
+        }
+
+        while ( mPosition < mData.length && (mData[mPosition] & 0xFF) == 0xFF ) {
+            mPosition++;
+        }
+
+        return mPosition < mData.length ? mData[mPosition++] & 0xFF : -1;
+    }
+
+    private int readShort(int position) {
+        return ((mData[position] & 0xFF) << 8) | (mData[position + 1] & 0xFF);
+    }
+
+    // ------------------------------------------------------------------------
+    // Transforming
+    // ------------------------------------------------------------------------
+
+    /**
+     * Whether every edge that ends up on the top or left of the output is a whole number of
+     * MCUs, so the padding blocks stay on the bottom and right.
+     */
+    private boolean isAligned() {
+        boolean flipsX = mOrientation == 2 || mOrientation == 3 || mOrientation == 7 || mOrientation == 8;
+        boolean flipsY = mOrientation == 3 || mOrientation == 4 || mOrientation == 6 || mOrientation == 7;
+
+        return (!flipsX || mWidth % (8 * mMaxH) == 0) && (!flipsY || mHeight % (8 * mMaxV) == 0);
+    }
+
+    /**
+     * The source block for an output block, in the source component's block grid. The same
+     * mapping as {@link TiledImageRotator#orientBand}, one block at a time.
+     */
+    private int sourceBlock(Component component, int x, int y) {
+        int width = component.blocksX;
+        int height = component.blocksY;
+
+        switch ( mOrientation ) {
+            case 2:
+                return y * width + (width - 1 - x);
+            case 3:
+                return (height - 1 - y) * width + (width - 1 - x);
+            case 4:
+                return (height - 1 - y) * width + x;
+            case 5:
+                return x * width + y;
+            case 6:
+                return (height - 1 - x) * width + y;
+            case 7:
+                return (height - 1 - x) * width + (width - 1 - y);
+            case 8:
+                return x * width + (width - 1 - y);
+            default:
+                return y * width + x;
+        }
+    }
+
+    /**
+     * For each output coefficient in zigzag order, the natural index of the source coefficient
+     * it comes from, negated (offset by one so zero can be negated) when its sign flips. A
+     * horizontal flip negates the odd columns, a vertical flip the odd rows, and a transpose
+     * swaps rows and columns.
+     */
+    private int[] coefficientMap() {
+        boolean negateColumns = mOrientation == 2 || mOrientation == 3 || mOrientation == 6 || mOrientation == 7;
+        boolean negateRows = mOrientation == 3 || mOrientation == 4 || mOrientation == 7 || mOrientation == 8;
+
+        int[] map = new int[64];
+
+        for ( int k = 0; k < 64; ++k ) {
+            int natural = JpegTables.ZIGZAG[k];
+            int v = natural / 8;
+            int u = natural % 8;
+
+            int source = mTransposed ? u * 8 + v : natural;
+            boolean negate = (negateColumns && (u & 1) == 1) ^ (negateRows && (v & 1) == 1);
+
+            map[k] = negate ? -(source + 1) : source + 1;
+        }
+
+        return map;
+    }
+
+    // ------------------------------------------------------------------------
+    // Encoding
+    // ------------------------------------------------------------------------
+
+    private void write(OutputStream output) throws IOException {
+        int count = mComponents.length;
+        int[] map = coefficientMap();
+
+        // the first component gets table 0, the chroma components share table 1
+        long[][] dcFrequencies = new long[2][257];
+        long[][] acFrequencies = new long[2][257];
+        encodeScan(JpegEntropyWriter.counting(), map, null, null, dcFrequencies, acFrequencies);
+
+        int tableCount = count == 1 ? 1 : 2;
+        JpegHuffmanTable[] dcTables = new JpegHuffmanTable[tableCount];
+        JpegHuffmanTable[] acTables = new JpegHuffmanTable[tableCount];
+        for ( int i = 0; i < tableCount; ++i ) {
+            dcTables[i] = JpegHuffmanTable.optimal(dcFrequencies[i]);
+            acTables[i] = JpegHuffmanTable.optimal(acFrequencies[i]);
+        }
+
+        ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        headers.write(0xFF);
+        headers.write(0xD8);
+
+        for ( byte[] segment : mSegments ) {
+            headers.write(segment);
+        }
+
+        boolean extended = writeQuantizationTables(headers);
+
+        // frame header, with the size and sampling factors swapped by a transpose
+        headers.write(0xFF);
+        headers.write(extended ? MARKER_SOF1 : MARKER_SOF0);
+        writeShort(headers, 8 + count * 3);
+        headers.write(8);
+        writeShort(headers, mTransposed ? mWidth : mHeight);
+        writeShort(headers, mTransposed ? mHeight : mWidth);
+        headers.write(count);
+
+        for ( Component component : mComponents ) {
+            int h = mTransposed ? component.v : component.h;
+            int v = mTransposed ? component.h : component.v;
+
+            headers.write(component.id);
+            headers.write((h << 4) | v);
+            headers.write(component.quantizationTable);
+        }
+
+        int length = 2;
+        for ( int i = 0; i < tableCount; ++i ) {
+            length += 2 * 17 + dcTables[i].values.length + acTables[i].values.length;
+        }
+
+        headers.write(0xFF);
+        headers.write(MARKER_DHT);
+        writeShort(headers, length);
+        for ( int i = 0; i < tableCount; ++i ) {
+            writeHuffmanTable(headers, i, dcTables[i]);
+            writeHuffmanTable(headers, 0x10 | i, acTables[i]);
+        }
+
+        // one scan with every component and no restart intervals
+        headers.write(0xFF);
+        headers.write(0xDA);
+        writeShort(headers, 6 + count * 2);
+        headers.write(count);
+        for ( int i = 0; i < count; ++i ) {
+            int table = i == 0 ? 0 : 1;
+            headers.write(mComponents[i].id);
+            headers.write((table << 4) | table);
+        }
+        headers.write(0);
+        headers.write(63);
+        headers.write(0);
+
+        headers.writeTo(output);
+
+        JpegEntropyWriter writer = new JpegEntropyWriter(output);
+        encodeScan(writer, map, dcTables, acTables, null, null);
+        writer.flush();
+
+        output.write(0xFF);
+        output.write(0xD9);
+    }
+
+    private void encodeScan(JpegEntropyWriter writer, int[] map, JpegHuffmanTable[] dcTables,
+                            JpegHuffmanTable[] acTables, long[][] dcFrequencies, long[][] acFrequencies)
+        throws IOException {
+        int[] zigzag = new int[64];
+        int count = mComponents.length;
+        int[] previousDC = new int[count];
+
+        if ( count == 1 ) {
+            Component component = mComponents[0];
+            int outputWidth = mTransposed ? mHeight : mWidth;
+            int outputHeight = mTransposed ? mWidth : mHeight;
+
+            for ( int y = 0; y < (outputHeight + 7) / 8; ++y ) {
+                for ( int x = 0; x < (outputWidth + 7) / 8; ++x ) {
+                    transformBlock(component, x, y, map, zigzag);
+                    previousDC[0] = writer.writeBlock(zigzag, previousDC[0], dcTables == null ? null : dcTables[0],
+                                                      acTables == null ? null : acTables[0],
+                                                      dcFrequencies == null ? null : dcFrequencies[0],
+                                                      acFrequencies == null ? null : acFrequencies[0]);
+                }
+            }
+
+            return;
+        }
+
+        int mcusX = mTransposed ? mMcusY : mMcusX;
+        int mcusY = mTransposed ? mMcusX : mMcusY;
+
+        for ( int mcuY = 0; mcuY < mcusY; ++mcuY ) {
+            for ( int mcuX = 0; mcuX < mcusX; ++mcuX ) {
+                for ( int i = 0; i < count; ++i ) {
+                    Component component = mComponents[i];
+                    int h = mTransposed ? component.v : component.h;
+                    int v = mTransposed ? component.h : component.v;
+                    int table = i == 0 ? 0 : 1;
+
+                    for ( int blockY = 0; blockY < v; ++blockY ) {
+                        for ( int blockX = 0; blockX < h; ++blockX ) {
+                            transformBlock(component, mcuX * h + blockX, mcuY * v + blockY, map, zigzag);
+                            previousDC[i] = writer.writeBlock(zigzag, previousDC[i],
+                                                              dcTables == null ? null : dcTables[table],
+                                                              acTables == null ? null : acTables[table],
+                                                              dcFrequencies == null ? null : dcFrequencies[table],
+                                                              acFrequencies == null ? null : acFrequencies[table]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void transformBlock(Component component, int x, int y, int[] map, int[] zigzag) {
+        short[] coefficients = component.coefficients;
+        int offset = sourceBlock(component, x, y) * 64;
+
+        for ( int k = 0; k < 64; ++k ) {
+            int source = map[k];
+            zigzag[k] = source > 0 ? coefficients[offset + source - 1] : -coefficients[offset - source - 1];
+        }
+    }
+
+    /**
+     * Writes every table a component uses, transposed along with the blocks. Returns whether
+     * any of them needs 16 bit precision, which makes it an extended frame.
+     */
+    private boolean writeQuantizationTables(ByteArrayOutputStream output) {
+        boolean extended = false;
+        boolean[] written = new boolean[4];
+
+        for ( Component component : mComponents ) {
+            int id = component.quantizationTable;
+
+            if ( written[id] ) {
+                continue;
+            }
+
+            written[id] = true;
+
+            boolean sixteenBit = mSixteenBitQuantization[id];
+            extended |= sixteenBit;
+
+            output.write(0xFF);
+            output.write(MARKER_DQT);
+            writeShort(output, 3 + (sixteenBit ? 128 : 64));
+            output.write((sixteenBit ? 0x10 : 0) | id);
+
+            int[] table = mQuantization[id];
+            for ( int k = 0; k < 64; ++k ) {
+                int natural = JpegTables.ZIGZAG[k];
+                int value = mTransposed ? table[(natural % 8) * 8 + natural / 8] : table[natural];
+
+                if ( sixteenBit ) {
+                    writeShort(output, value);
+                }
+                else {
+                    output.write(value);
+                }
+            }
+        }
+
+        return extended;
+    }
+
+    private static void writeHuffmanTable(ByteArrayOutputStream output, int classAndID, JpegHuffmanTable table) {
+        output.write(classAndID);
+        for ( int count : table.bits ) {
+            output.write(count);
+        }
+        for ( int value : table.values ) {
+            output.write(value);
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream output, int value) {
+        output.write((value >> 8) & 0xFF);
+        output.write(value & 0xFF);
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    private static class Component {
+
+        int id;
+
+        int h;
+
+        int v;
+
+        int quantizationTable;
+
+        int blocksX;
+
+        int blocksY;
+
+        short[] coefficients;
+
+        HuffmanDecoder dcTable;
+
+        HuffmanDecoder acTable;
+
+        int previousDC;
+    }
+
+    /**
+     * Decodes one code at a time with the min code, max code and value pointer tables from
+     * Annex F.
+     */
+    private static class HuffmanDecoder {
+
+        private final int[] mValues;
+
+        private final int[] mMinCode = new int[17];
+
+        private final int[] mMaxCode = new int[18];
+
+        private final int[] mValuePointer = new int[17];
+
+        HuffmanDecoder(int[] bits, int[] values) {
+            mValues = values;
+
+            int code = 0;
+            int index = 0;
+
+            for ( int length = 1; length <= 16; ++length ) {
+                mValuePointer[length] = index;
+                mMinCode[length] = code;
+                code += bits[length - 1];
+                index += bits[length - 1];
+                mMaxCode[length] = bits[length - 1] == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+
+            mMaxCode[17] = Integer.MAX_VALUE;
+        }
+
+        int decode(LosslessJpegTransform reader) throws IOException {
+            int code = reader.readBit();
+            int length = 1;
+
+            while ( code > mMaxCode[length] ) {
+                code = (code << 1) | reader.readBit();
+                length++;
+
+                if ( length > 16 ) {
+                    throw new IOException("corrupt huffman code");
+                }
+            }
+
+            return mValues[mValuePointer[length] + code - mMinCode[length]];
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.Locale;
+
+/**
+ * The formats the resize pipeline can write jpeg photos out as, picked per app by an admin.
+ * WebP and HEIF are usually much smaller than jpeg at the same visual quality, which saves
+ * storage and sync bandwidth. See {@link PhotoFormatBenchmark} for numbers on a device.
+ */
+public enum PhotoFormat {
+
+    JPEG(ImageHeaderProbe.MIME_TYPE_JPEG, 100),
+
+    WEBP(ImageHeaderProbe.MIME_TYPE_WEBP, 85),
+
+    /**
+     * Needs Android 9, older devices write WebP instead.
+     */
+    HEIF(ImageHeaderProbe.MIME_TYPE_HEIF, 85);
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final String mMimeType;
+
+    private final int mDefaultQuality;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    PhotoFormat(String mimeType, int defaultQuality) {
+        mMimeType = mimeType;
+        mDefaultQuality = defaultQuality;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Parses an app's format setting, like "webp". Returns null for null or anything it doesn't
+     * recognize, which keeps jpeg.
+     */
+    public static PhotoFormat parse(String value) {
+        if ( value == null ) {
+            return null;
+        }
+
+        String format = value.trim().toLowerCase(Locale.US);
+
+        switch ( format ) {
+            case "jpg":
+            case "jpeg":
+                return JPEG;
+            case "webp":
+                return WEBP;
+            case "heif":
+            case "heic":
+                return HEIF;
+            default:
+                return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * The quality photos are written at when a form doesn't set one. Jpeg keeps the 100 it's
+     * always used, the lossy formats get one where they're still visually lossless.
+     */
+    public int getDefaultQuality() {
+        return mDefaultQuality;
+    }
+}
@@ -0,0 +1,253 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+
+/**
+ * Measures each {@link PhotoFormat} on the device it runs on, over sample photos, so an admin
+ * can pick the app's output format from real numbers. Every photo is decoded once at the
+ * given size, then compressed and decoded again in each format at its default quality. The
+ * report has the encode time, output size and decode time per photo, and the size relative to
+ * jpeg. HEIF is left out on devices before Android 9.
+ *
+ * It takes seconds per photo, so run it off the main thread, e.g. from a debug screen or an
+ * instrumentation test, and log {@link Result#toString}.
+ */
+public class PhotoFormatBenchmark {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    private static final String TAG = PhotoFormatBenchmark.class.getSimpleName();
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final Context mContext;
+
+    private final int mLargestDimension;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    /**
+     * @param largestDimension the size photos are resized to first, like the app's quality
+     *                         setting, 0 for native
+     */
+    public PhotoFormatBenchmark(Context context, int largestDimension) {
+        mContext = context.getApplicationContext();
+        mLargestDimension = largestDimension;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    public Result run(List<File> photos) {
+        List<PhotoFormat> formats = new ArrayList<>();
+        formats.add(PhotoFormat.JPEG);
+        formats.add(PhotoFormat.WEBP);
+
+        if ( HeifImageCodec.isSupported() ) {
+            formats.add(PhotoFormat.HEIF);
+        }
+
+        Result result = new Result(formats);
+        AndroidImageCodec decoder = new AndroidImageCodec(CompressFormat.JPEG, null);
+
+        for ( File photo : photos ) {
+            Bitmap bitmap = decode(decoder, photo);
+
+            if ( bitmap == null ) {
+                FulcrumLogger.log(TAG, "Could not decode photo: " + photo);
+                continue;
+            }
+
+            try {
+                for ( FormatResult format : result.mFormats ) {
+                    measure(format, bitmap);
+                }
+            }
+            finally {
+                bitmap.recycle();
+            }
+        }
+
+        return result;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private Bitmap decode(AndroidImageCodec decoder, File photo) {
+        ImageHeaderProbe header;
+
+        try {
+            header = ImageHeaderProbe.probe(photo);
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+            return null;
+        }
+
+        if ( !header.hasSize() ) {
+            return null;
+        }
+
+        int width = header.getWidth();
+        int height = header.getHeight();
+        float scale = mLargestDimension == 0 ? 1 : Math.min(1f, (float) mLargestDimension / Math.max(width, height));
+
+        return decoder.decode(photo.getPath(), width, height, Math.round(width * scale), Math.round(height * scale),
+                              header.getOrientation());
+    }
+
+    private void measure(FormatResult format, Bitmap bitmap) {
+        AndroidImageCodec codec = createCodec(format.mFormat);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        try {
+            long start = System.nanoTime();
+            codec.compress(bitmap, format.mFormat.getDefaultQuality(), output);
+            long encodeNanos = System.nanoTime() - start;
+
+            byte[] bytes = output.toByteArray();
+
+            start = System.nanoTime();
+            Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            long decodeNanos = System.nanoTime() - start;
+
+            if ( decoded == null ) {
+                format.mFailures++;
+                return;
+            }
+
+            decoded.recycle();
+
+            format.mCount++;
+            format.mEncodeNanos += encodeNanos;
+            format.mDecodeNanos += decodeNanos;
+            format.mBytes += bytes.length;
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+            format.mFailures++;
+        }
+    }
+
+    private AndroidImageCodec createCodec(PhotoFormat format) {
+        switch ( format ) {
+            case WEBP:
+                return new AndroidImageCodec(AndroidImageCodec.getLossyWebpFormat(), null);
+            case HEIF:
+                return new HeifImageCodec(null, mContext.getCacheDir());
+            default:
+                return new AndroidImageCodec(CompressFormat.JPEG, null);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public static class Result {
+
+        private final List<FormatResult> mFormats = new ArrayList<>();
+
+        Result(List<PhotoFormat> formats) {
+            for ( PhotoFormat format : formats ) {
+                mFormats.add(new FormatResult(format));
+            }
+        }
+
+        public List<FormatResult> getFormats() {
+            return mFormats;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "%-6s %7s %6s %10s %10s %10s %8s%n", "format", "quality",
+                                         "photos", "encode ms", "KB", "decode ms", "vs jpeg"));
+
+            long jpegBytes = mFormats.get(0).getMeanBytes();
+
+            for ( FormatResult format : mFormats ) {
+                long bytes = format.getMeanBytes();
+
+                builder.append(String.format(Locale.US, "%-6s %7d %6d %10.1f %10.1f %10.1f %7.0f%%",
+                                             format.mFormat, format.mFormat.getDefaultQuality(), format.mCount,
+                                             format.getMeanEncodeMillis(), bytes / 1024.0,
+                                             format.getMeanDecodeMillis(),
+                                             jpegBytes == 0 ? 0 : 100.0 * bytes / jpegBytes));
+
+                if ( format.mFailures > 0 ) {
+                    builder.append(String.format(Locale.US, " (%d failed)", format.mFailures));
+                }
+
+                builder.append('\n');
+            }
+
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The means per photo for one format.
+     */
+    public static class FormatResult {
+
+        private final PhotoFormat mFormat;
+
+        private int mCount;
+
+        private int mFailures;
+
+        private long mEncodeNanos;
+
+        private long mDecodeNanos;
+
+        private long mBytes;
+
+        FormatResult(PhotoFormat format) {
+            mFormat = format;
+        }
+
+        public PhotoFormat getFormat() {
+            return mFormat;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getFailures() {
+            return mFailures;
+        }
+
+        public double getMeanEncodeMillis() {
+            return mCount == 0 ? 0 : mEncodeNanos / 1e6 / mCount;
+        }
+
+        public double getMeanDecodeMillis() {
+            return mCount == 0 ? 0 : mDecodeNanos / 1e6 / mCount;
+        }
+
+        public long getMeanBytes() {
+            return mCount == 0 ? 0 : mBytes / mCount;
+        }
+    }
+}
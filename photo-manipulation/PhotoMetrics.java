@@ -0,0 +1,163 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.Locale;
+
+/**
+ * What processing one photo cost: the wall time of each stage, the bytes read and written and
+ * the most bitmap memory held at once. A task only collects these while a {@link Sink} is
+ * installed with {@link ImageFileResizeTask#setMetricsSink}, and hands them to it once the
+ * photo is done.
+ */
+public class PhotoMetrics {
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final String mPhotoID;
+
+    private final long[] mStageNanos = new long[Stage.values().length];
+
+    private long mTotalNanos;
+
+    private long mBytesRead;
+
+    private long mBytesWritten;
+
+    private long mPeakBitmapBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public PhotoMetrics(String photoID) {
+        mPhotoID = photoID;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    public String getPhotoID() {
+        return mPhotoID;
+    }
+
+    /**
+     * The time spent in a stage, 0 if the photo didn't go through it.
+     */
+    public long getStageNanos(Stage stage) {
+        return mStageNanos[stage.ordinal()];
+    }
+
+    /**
+     * The wall time from the header probe to the last write, including anything between the
+     * stages.
+     */
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public long getPeakBitmapBytes() {
+        return mPeakBitmapBytes;
+    }
+
+    public void addStageNanos(Stage stage, long nanos) {
+        mStageNanos[stage.ordinal()] += nanos;
+    }
+
+    public void setTotalNanos(long nanos) {
+        mTotalNanos = nanos;
+    }
+
+    public void addBytesRead(long bytes) {
+        mBytesRead += bytes;
+    }
+
+    public void addBytesWritten(long bytes) {
+        mBytesWritten += bytes;
+    }
+
+    public void setPeakBitmapBytes(long bytes) {
+        mPeakBitmapBytes = bytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PhotoMetrics{").append(mPhotoID);
+
+        for ( Stage stage : Stage.values() ) {
+            long nanos = mStageNanos[stage.ordinal()];
+
+            if ( nanos > 0 ) {
+                builder.append(", ").append(stage.name().toLowerCase(Locale.US)).append('=').append(nanos / 1000).append("us");
+            }
+        }
+
+        return builder.append(", total=").append(mTotalNanos / 1000).append("us")
+                      .append(", read=").append(mBytesRead)
+                      .append(", written=").append(mBytesWritten)
+                      .append(", peakBitmap=").append(mPeakBitmapBytes)
+                      .append('}').toString();
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public enum Stage {
+        /**
+         * Reading the size, type, orientation and exif from the header, or decoding bounds.
+         */
+        PROBE,
+        /**
+         * Hashing the photo before and after it's written, to check and update the ledger of
+         * photos already processed.
+         */
+        HASH,
+        /**
+         * Building the sanselan output set from the header's exif, and reading the header again
+         * first if the photo changed after the task was created.
+         */
+        EXIF_READ,
+        /**
+         * Decoding, scaling and orienting the bitmap.
+         */
+        DECODE,
+        /**
+         * Applying the orientation to a native size jpeg, losslessly or band by band.
+         */
+        ROTATE,
+        /**
+         * Setting the size, location and the rest of our tags in the output set.
+         */
+        EXIF_WRITE,
+        /**
+         * Compressing the bitmap and writing it with its exif.
+         */
+        COMPRESS,
+        /**
+         * Rewriting the exif of a photo that wasn't compressed again.
+         */
+        SAVE_EXIF,
+        /**
+         * Scaling and writing every rendition.
+         */
+        RENDITIONS
+    }
+
+    /**
+     * Receives the metrics for each photo as it finishes, on the thread that processed it.
+     */
+    public interface Sink {
+
+        void onPhotoProcessed(PhotoMetrics metrics);
+    }
+}
@@ -0,0 +1,228 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A {@link PhotoMetrics.Sink} that aggregates every photo into a histogram per stage, so slow
+ * ingest can be pinned on a stage. Buckets double in width starting at 1ms, which keeps them
+ * fixed in number and cheap to update while still telling 5ms from 500ms. Bytes and peak
+ * bitmap sizes are kept as totals and maximums.
+ *
+ * {@link #dump} gives a readable table for logs, {@link #getBuckets} the raw counts for
+ * exporting elsewhere.
+ */
+public class PhotoMetricsHistogram implements PhotoMetrics.Sink {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * Up to about 4 minutes, anything slower lands in the last bucket.
+     */
+    public static final int BUCKET_COUNT = 20;
+
+    private static final long FIRST_BUCKET_NANOS = 1000000;
+
+    private static final int TOTAL = PhotoMetrics.Stage.values().length;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * A row per stage, then one for the total time.
+     */
+    private final long[][] mBuckets = new long[TOTAL + 1][BUCKET_COUNT];
+
+    private final long[] mCounts = new long[TOTAL + 1];
+
+    private final long[] mSumNanos = new long[TOTAL + 1];
+
+    private final long[] mMaxNanos = new long[TOTAL + 1];
+
+    private long mPhotoCount;
+
+    private long mBytesRead;
+
+    private long mBytesWritten;
+
+    private long mMaxPeakBitmapBytes;
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * The bucket a time falls in, bucket i holding times under {@link #getBucketUpperNanos}(i).
+     */
+    static int bucketOf(long nanos) {
+        int bucket = 0;
+        long upper = FIRST_BUCKET_NANOS;
+
+        while ( nanos >= upper && bucket < BUCKET_COUNT - 1 ) {
+            upper <<= 1;
+            bucket++;
+        }
+
+        return bucket;
+    }
+
+    public static long getBucketUpperNanos(int bucket) {
+        return bucket >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : FIRST_BUCKET_NANOS << bucket;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    @Override
+    public synchronized void onPhotoProcessed(PhotoMetrics metrics) {
+        for ( PhotoMetrics.Stage stage : PhotoMetrics.Stage.values() ) {
+            long nanos = metrics.getStageNanos(stage);
+
+            // a stage the photo didn't go through isn't a zero length sample
+            if ( nanos > 0 ) {
+                record(stage.ordinal(), nanos);
+            }
+        }
+
+        record(TOTAL, metrics.getTotalNanos());
+
+        mPhotoCount++;
+        mBytesRead += metrics.getBytesRead();
+        mBytesWritten += metrics.getBytesWritten();
+        mMaxPeakBitmapBytes = Math.max(mMaxPeakBitmapBytes, metrics.getPeakBitmapBytes());
+    }
+
+    /**
+     * A copy of the bucket counts for a stage, or for the total time if the stage is null.
+     */
+    public synchronized long[] getBuckets(PhotoMetrics.Stage stage) {
+        return mBuckets[row(stage)].clone();
+    }
+
+    public synchronized long getCount(PhotoMetrics.Stage stage) {
+        return mCounts[row(stage)];
+    }
+
+    public synchronized long getMeanNanos(PhotoMetrics.Stage stage) {
+        int row = row(stage);
+        return mCounts[row] == 0 ? 0 : mSumNanos[row] / mCounts[row];
+    }
+
+    public synchronized long getMaxNanos(PhotoMetrics.Stage stage) {
+        return mMaxNanos[row(stage)];
+    }
+
+    /**
+     * The upper bound of the bucket the given percentile (0 to 100) falls in, so an estimate
+     * that's at most 2x high. Capped at the slowest time actually seen.
+     */
+    public synchronized long getPercentileNanos(PhotoMetrics.Stage stage, double percentile) {
+        int row = row(stage);
+
+        if ( mCounts[row] == 0 ) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(mCounts[row] * percentile / 100);
+        long seen = 0;
+
+        for ( int bucket = 0; bucket < BUCKET_COUNT; ++bucket ) {
+            seen += mBuckets[row][bucket];
+
+            if ( seen >= rank ) {
+                return Math.min(getBucketUpperNanos(bucket), mMaxNanos[row]);
+            }
+        }
+
+        return mMaxNanos[row];
+    }
+
+    public synchronized long getPhotoCount() {
+        return mPhotoCount;
+    }
+
+    public synchronized long getBytesRead() {
+        return mBytesRead;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public synchronized long getMaxPeakBitmapBytes() {
+        return mMaxPeakBitmapBytes;
+    }
+
+    public synchronized void reset() {
+        for ( int row = 0; row <= TOTAL; ++row ) {
+            Arrays.fill(mBuckets[row], 0);
+            mCounts[row] = 0;
+            mSumNanos[row] = 0;
+            mMaxNanos[row] = 0;
+        }
+
+        mPhotoCount = 0;
+        mBytesRead = 0;
+        mBytesWritten = 0;
+        mMaxPeakBitmapBytes = 0;
+    }
+
+    /**
+     * A table of count, mean, p50, p90, p99 and max milliseconds per stage.
+     */
+    public synchronized String dump() {
+        StringBuilder builder = new StringBuilder();
+
+        builder.append(String.format(Locale.US, "%d photos, %d bytes read, %d bytes written, %d peak bitmap bytes%n",
+                                     mPhotoCount, mBytesRead, mBytesWritten, mMaxPeakBitmapBytes));
+        builder.append(String.format(Locale.US, "%-12s %8s %10s %10s %10s %10s %10s%n",
+                                     "stage", "count", "mean", "p50", "p90", "p99", "max"));
+
+        for ( PhotoMetrics.Stage stage : PhotoMetrics.Stage.values() ) {
+            appendRow(builder, stage.name().toLowerCase(Locale.US), stage);
+        }
+
+        appendRow(builder, "total", null);
+
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return dump();
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private void record(int row, long nanos) {
+        mBuckets[row][bucketOf(nanos)]++;
+        mCounts[row]++;
+        mSumNanos[row] += nanos;
+        mMaxNanos[row] = Math.max(mMaxNanos[row], nanos);
+    }
+
+    private static int row(PhotoMetrics.Stage stage) {
+        return stage == null ? TOTAL : stage.ordinal();
+    }
+
+    private void appendRow(StringBuilder builder, String name, PhotoMetrics.Stage stage) {
+        if ( getCount(stage) == 0 ) {
+            return;
+        }
+
+        builder.append(String.format(Locale.US, "%-12s %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name,
+                                     getCount(stage), millis(getMeanNanos(stage)),
+                                     millis(getPercentileNanos(stage, 50)), millis(getPercentileNanos(stage, 90)),
+                                     millis(getPercentileNanos(stage, 99)), millis(getMaxNanos(stage))));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -0,0 +1,486 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs photo work (resizing, rewriting EXIF) on its own small pool instead of the shared
+ * AsyncTask executor. Foreground work, like the photo the user is looking at, always runs before
+ * anything queued in the background lane. Within a lane photos run in the order they were
+ * submitted.
+ *
+ * The number of photos waiting or running is bounded. Once it's reached {@link #submit} throws
+ * a RejectedExecutionException so a burst capture can't queue up without limit. Nothing here
+ * depends on Android.
+ *
+ * Only one piece of work per photo, by photo ID or file path, is queued or running at a time. A
+ * second submit with the same parameters attaches its listener to the existing work instead of
+ * doing it again. One with different parameters replaces work that hasn't started yet, or waits
+ * for running work to finish, so two workers never write the same file. Work that waits has to
+ * read the photo when it starts, not when it's submitted, since the work before it changes it.
+ */
+public class PhotoProcessingQueue {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * Each photo holds a full size bitmap while it's processed, so only a couple at a time.
+     */
+    private static final int DEFAULT_THREAD_COUNT = 2;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static PhotoProcessingQueue sInstance;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Semaphore mCapacity;
+
+    /**
+     * The latest work for each photo ID and path, guarded by the queue.
+     */
+    private final HashMap<String, PhotoTask> mTasks = new HashMap<>();
+
+    private final HashMap<String, PhotoTask> mTasksByPath = new HashMap<>();
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public PhotoProcessingQueue() {
+        this(DEFAULT_THREAD_COUNT, DEFAULT_CAPACITY);
+    }
+
+    public PhotoProcessingQueue(int threadCount, int capacity) {
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                           new PriorityBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        mCapacity = new Semaphore(Math.max(1, capacity));
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    public static synchronized PhotoProcessingQueue getInstance() {
+        if ( sInstance == null ) {
+            sInstance = new PhotoProcessingQueue();
+        }
+
+        return sInstance;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Queues work for a photo and returns its future. The listener, if any, is called on the
+     * worker thread once the work finishes, fails or is cancelled.
+     *
+     * @throws RejectedExecutionException if the queue is at capacity or shut down
+     */
+    public PhotoTask submit(String photoID, Priority priority, Runnable work, Listener listener) {
+        return submit(photoID, null, null, priority, work, listener);
+    }
+
+    /**
+     * Queues work for a photo unless the same work is already queued or running for its photo ID
+     * or path, in which case the listener is attached to that and it's returned instead.
+     *
+     * @param path the file the work writes, or null to only match on the photo ID
+     * @param parameters what the work does to the photo, like its largest dimension and quality.
+     *                   Work with different parameters replaces queued work for the photo, or
+     *                   runs after the work that's already running. They shouldn't depend on
+     *                   the photo's current state, which the running work may change.
+     * @throws RejectedExecutionException if the queue is at capacity or shut down
+     */
+    public PhotoTask submit(String photoID, String path, String parameters, Priority priority, Runnable work,
+                            Listener listener) {
+        PhotoTask task;
+        PhotoTask superseded = null;
+        boolean execute;
+
+        synchronized ( this ) {
+            PhotoTask latest = findLatest(photoID, path);
+
+            if ( latest != null && !latest.mCancelled && equals(latest.mParameters, parameters) ) {
+                latest.addListener(listener);
+                return latest;
+            }
+
+            // running work can't be stopped halfway through writing the file, queued work can
+            PhotoTask running = latest == null ? null : latest.mStarted ? latest : latest.mPredecessor;
+            PhotoTask waiting = latest != null && !latest.mStarted ? latest : null;
+
+            if ( running != null && equals(running.mParameters, parameters) ) {
+                // back to what's already running, so the work waiting after it isn't needed anymore
+                superseded = supersede(waiting, running);
+                running.addListener(listener);
+                task = running;
+                execute = false;
+            }
+            else {
+                if ( !mCapacity.tryAcquire() ) {
+                    throw new RejectedExecutionException("photo queue is full, rejected " + photoID);
+                }
+
+                task = new PhotoTask(photoID, path, parameters, priority, mSequence.getAndIncrement(), work);
+                task.addListener(listener);
+
+                if ( waiting != null ) {
+                    superseded = supersede(waiting, task);
+                }
+
+                // run after the running work, or right away if there isn't any
+                task.mPredecessor = running;
+                if ( running != null ) {
+                    running.mSuccessor = task;
+                }
+                execute = running == null;
+
+                mTasks.put(photoID, task);
+                if ( path != null ) {
+                    mTasksByPath.put(path, task);
+                }
+            }
+        }
+
+        if ( superseded != null ) {
+            superseded.abandon();
+        }
+
+        if ( execute ) {
+            execute(task);
+        }
+
+        return task;
+    }
+
+    /**
+     * Returns the latest pending or running work for a photo, or null if there isn't any.
+     */
+    public synchronized Future<Void> getFuture(String photoID) {
+        return mTasks.get(photoID);
+    }
+
+    /**
+     * Cancels the photo's work if it hasn't started yet. Work that's already running is left
+     * to finish, a half written photo is worse than a late one.
+     */
+    public boolean cancel(String photoID) {
+        PhotoTask task;
+
+        synchronized ( this ) {
+            task = mTasks.get(photoID);
+        }
+
+        return task != null && task.cancel(false);
+    }
+
+    /**
+     * The number of photos queued or running.
+     */
+    public synchronized int getPendingCount() {
+        return mTasks.size();
+    }
+
+    public int getRemainingCapacity() {
+        return mCapacity.availablePermits();
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private PhotoTask findLatest(String photoID, String path) {
+        // the path comes first, it's what two workers can't share
+        PhotoTask latest = path != null ? mTasksByPath.get(path) : null;
+        return latest != null ? latest : mTasks.get(photoID);
+    }
+
+    /**
+     * Marks queued work as cancelled and moves whoever was waiting on it to its replacement.
+     * Returns it so the caller can finish cancelling it outside the lock, or null if it was
+     * already cancelled. Must hold the lock, so the work can't start in the meantime.
+     */
+    private PhotoTask supersede(PhotoTask waiting, PhotoTask replacement) {
+        if ( waiting == null || waiting.mCancelled ) {
+            return null;
+        }
+
+        waiting.mCancelled = true;
+        waiting.mSuperseded = true;
+        replacement.mListeners.addAll(waiting.mListeners);
+
+        return waiting;
+    }
+
+    private void execute(PhotoTask task) {
+        try {
+            mExecutor.execute(task);
+        }
+        catch ( RejectedExecutionException e ) {
+            task.cancel(false);
+            throw e;
+        }
+    }
+
+    private void finish(PhotoTask task) {
+        PhotoTask successor;
+
+        synchronized ( this ) {
+            // a newer submit for the same photo may have replaced this one already. If this was
+            // cancelled while waiting, the work it waited on is the latest again.
+            PhotoTask predecessor = task.mPredecessor;
+            if ( predecessor != null && predecessor.mSuccessor == task ) {
+                predecessor.mSuccessor = null;
+            }
+            else {
+                predecessor = null;
+            }
+
+            if ( mTasks.get(task.mPhotoID) == task ) {
+                replace(mTasks, task.mPhotoID,
+                        predecessor != null && predecessor.mPhotoID.equals(task.mPhotoID) ? predecessor : null);
+            }
+            if ( task.mPath != null && mTasksByPath.get(task.mPath) == task ) {
+                replace(mTasksByPath, task.mPath,
+                        predecessor != null && task.mPath.equals(predecessor.mPath) ? predecessor : null);
+            }
+
+            // a superseded task hands its place in line to the task that replaced it
+            successor = task.mSuperseded ? null : task.mSuccessor;
+            task.mSuccessor = null;
+
+            if ( successor != null ) {
+                successor.mPredecessor = null;
+            }
+        }
+
+        mCapacity.release();
+
+        if ( successor != null ) {
+            try {
+                execute(successor);
+            }
+            catch ( RejectedExecutionException ignored ) {
+                // shut down, the successor was cancelled and its listeners told
+            }
+        }
+    }
+
+    private static void replace(HashMap<String, PhotoTask> tasks, String key, PhotoTask task) {
+        if ( task != null ) {
+            tasks.put(key, task);
+        }
+        else {
+            tasks.remove(key);
+        }
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public enum Priority {
+
+        /**
+         * The photo the user is waiting on.
+         */
+        FOREGROUND,
+
+        /**
+         * Everything else, like the rest of a burst.
+         */
+        BACKGROUND
+    }
+
+    public interface Listener {
+
+        void onProcessed(String photoID);
+
+        /**
+         * Called with a CancellationException if the work was cancelled before it ran.
+         */
+        void onFailed(String photoID, Exception error);
+    }
+
+    public class PhotoTask extends FutureTask<Void> implements Comparable<PhotoTask> {
+
+        private final String mPhotoID;
+
+        private final String mPath;
+
+        private final String mParameters;
+
+        private final Priority mPriority;
+
+        private final long mSequence;
+
+        private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+        // the rest is guarded by the queue
+
+        private boolean mStarted;
+
+        private boolean mCancelled;
+
+        private boolean mSuperseded;
+
+        /**
+         * Running work for the same photo this is waiting on.
+         */
+        private PhotoTask mPredecessor;
+
+        /**
+         * Work for the same photo to queue once this finishes.
+         */
+        private PhotoTask mSuccessor;
+
+        PhotoTask(String photoID, String path, String parameters, Priority priority, long sequence, Runnable work) {
+            super(work, null);
+            mPhotoID = photoID;
+            mPath = path;
+            mParameters = parameters;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        public String getPhotoID() {
+            return mPhotoID;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void run() {
+            synchronized ( PhotoProcessingQueue.this ) {
+                if ( mCancelled ) {
+                    return;
+                }
+
+                mStarted = true;
+            }
+
+            super.run();
+        }
+
+        /**
+         * Only cancels work that hasn't started. FutureTask would otherwise report running work
+         * as cancelled and let another worker start on the same file.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized ( PhotoProcessingQueue.this ) {
+                if ( mStarted || mCancelled ) {
+                    return false;
+                }
+
+                mCancelled = true;
+            }
+
+            return super.cancel(false);
+        }
+
+        @Override
+        public int compareTo(PhotoTask other) {
+            int result = mPriority.compareTo(other.mPriority);
+            return result != 0 ? result : Long.compare(mSequence, other.mSequence);
+        }
+
+        @Override
+        protected void done() {
+            finish(this);
+
+            // its listeners were moved to the task that replaced it
+            if ( mSuperseded || mListeners.isEmpty() ) {
+                return;
+            }
+
+            try {
+                get();
+
+                for ( Listener listener : mListeners ) {
+                    listener.onProcessed(mPhotoID);
+                }
+            }
+            catch ( CancellationException e ) {
+                notifyFailed(e);
+            }
+            catch ( ExecutionException e ) {
+                Throwable cause = e.getCause();
+                notifyFailed(cause instanceof Exception ? (Exception) cause : e);
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Cancels work the queue already marked as cancelled, like superseded work.
+         */
+        private void abandon() {
+            super.cancel(false);
+        }
+
+        private void addListener(Listener listener) {
+            if ( listener != null ) {
+                mListeners.add(listener);
+            }
+        }
+
+        private void notifyFailed(Exception error) {
+            for ( Listener listener : mListeners ) {
+                listener.onFailed(mPhotoID, error);
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PhotoProcessingQueue #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
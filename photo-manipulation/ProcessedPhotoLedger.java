@@ -0,0 +1,322 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which photos the resize pipeline already wrote, by a hash of their content and the
+ * settings they were written with, so a re-import, a gallery re-selection or a retry after a
+ * crash doesn't decode and re-encode a photo again and lose more quality each time.
+ *
+ * The ledger is a file of fixed width rows, one appended per processed photo, so recording a
+ * photo is a single small write. It's loaded with a single read, the newest row for a hash wins
+ * and the file is rewritten without the duplicates once it's grown to twice
+ * {@link #MAX_ENTRIES}. Only the most recently recorded photos are kept. Nothing here depends on
+ * Android.
+ */
+public class ProcessedPhotoLedger {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    public static final String FILE_NAME = ".processed-photos";
+
+    public static final int MAX_ENTRIES = 10000;
+
+    private static final int MAGIC = 0x50504c47; // PPLG
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    // content hash, length, parameters hash, photo ID hash
+    private static final int ROW_SIZE = 8 * 4;
+
+    /**
+     * How much of each end of the photo the content hash reads. Jpeg headers and exif live at
+     * the start and any re-encode changes the entropy coded data at the end, so the ends and the
+     * length tell photos apart without reading all of one.
+     */
+    private static final int HASH_SPAN = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final File mFile;
+
+    // rows by content hash, oldest first
+    private final LinkedHashMap<Long, long[]> mEntries = new LinkedHashMap<Long, long[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private int mRowCount;
+
+    // until the file is known to be whole, rows can't just be appended to it
+    private boolean mRewrite = true;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    private ProcessedPhotoLedger(File file) {
+        mFile = file;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Loads the ledger from a file. A missing or unreadable file just gives an empty ledger.
+     */
+    public static ProcessedPhotoLedger load(File file) {
+        ProcessedPhotoLedger ledger = new ProcessedPhotoLedger(file);
+
+        try {
+            ledger.read();
+        }
+        catch ( IOException e ) {
+            FulcrumLogger.log(e);
+        }
+
+        return ledger;
+    }
+
+    /**
+     * A 64 bit FNV-1a of the photo's length and the first and last {@link #HASH_SPAN} bytes.
+     */
+    public static long hash(File photo) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(photo, "r");
+
+        try {
+            long length = file.length();
+            long hash = hash(0xcbf29ce484222325L, length);
+
+            byte[] buffer = new byte[(int) Math.min(length, HASH_SPAN)];
+
+            file.readFully(buffer);
+            hash = hash(hash, buffer, buffer.length);
+
+            if ( length > HASH_SPAN ) {
+                int tail = (int) Math.min(length - HASH_SPAN, HASH_SPAN);
+
+                file.seek(length - tail);
+                file.readFully(buffer, 0, tail);
+                hash = hash(hash, buffer, tail);
+            }
+
+            return hash;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private static long hash(long hash, long value) {
+        for ( int i = 0; i < 8; ++i ) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static long hash(long hash, byte[] bytes, int length) {
+        for ( int i = 0; i < length; ++i ) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    private static long hash(String value) {
+        if ( value == null ) {
+            return 0;
+        }
+
+        byte[] bytes = value.getBytes(UTF_8);
+        return hash(0xcbf29ce484222325L, bytes, bytes.length);
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * How a photo, given by its content hash and length, matches what the ledger has for it.
+     */
+    public synchronized Match find(long contentHash, long length, String parameters, String photoID) {
+        long[] row = mEntries.get(contentHash);
+
+        if ( row == null || row[0] != length || row[1] != hash(parameters) ) {
+            return Match.NONE;
+        }
+
+        return row[2] == hash(photoID) ? Match.EXACT : Match.PARAMETERS;
+    }
+
+    /**
+     * Records a photo the pipeline just wrote, with the hash and length of what it wrote.
+     */
+    public synchronized void record(long contentHash, long length, String parameters, String photoID)
+        throws IOException {
+        long[] row = new long[] { length, hash(parameters), hash(photoID) };
+
+        // re-inserted so it's the newest
+        mEntries.remove(contentHash);
+        mEntries.put(contentHash, row);
+
+        // a new or damaged file needs rewriting, and a long one its duplicates dropped
+        if ( mRewrite || mRowCount >= MAX_ENTRIES * 2 || !mFile.exists() ) {
+            save();
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(ROW_SIZE);
+        putRow(buffer, contentHash, row);
+
+        FileOutputStream fos = new FileOutputStream(mFile, true);
+        try {
+            fos.write(buffer.array());
+        }
+        finally {
+            fos.close();
+        }
+
+        mRowCount++;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized void clear() throws IOException {
+        mEntries.clear();
+        save();
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private void read() throws IOException {
+        if ( !mFile.exists() ) {
+            return;
+        }
+
+        byte[] bytes = new byte[(int) mFile.length()];
+
+        FileInputStream fis = new FileInputStream(mFile);
+        try {
+            int offset = 0;
+            while ( offset < bytes.length ) {
+                int read = fis.read(bytes, offset, bytes.length - offset);
+                if ( read < 0 ) {
+                    break;
+                }
+                offset += read;
+            }
+        }
+        finally {
+            fis.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        if ( bytes.length < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION ) {
+            return;
+        }
+
+        // a row torn by a crash mid-append is left off, and dropped with the next write
+        int count = (bytes.length - HEADER_SIZE) / ROW_SIZE;
+        mRewrite = (bytes.length - HEADER_SIZE) % ROW_SIZE != 0;
+
+        buffer.position(HEADER_SIZE);
+        for ( int i = 0; i < count; ++i ) {
+            long contentHash = buffer.getLong();
+            long[] row = new long[] { buffer.getLong(), buffer.getLong(), buffer.getLong() };
+
+            mEntries.remove(contentHash);
+            mEntries.put(contentHash, row);
+        }
+
+        mRowCount = count;
+    }
+
+    /**
+     * Rewrites the ledger with one row per photo. The file is written to a temporary file first
+     * and renamed over the old one so a crash mid-write can't leave a torn ledger behind.
+     */
+    private void save() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mEntries.size() * ROW_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+
+        for ( Map.Entry<Long, long[]> entry : mEntries.entrySet() ) {
+            putRow(buffer, entry.getKey(), entry.getValue());
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(buffer.array());
+        }
+        finally {
+            fos.close();
+        }
+
+        if ( !tempFile.renameTo(mFile) ) {
+            throw new IOException("Unable to replace " + mFile);
+        }
+
+        mRowCount = mEntries.size();
+        mRewrite = false;
+    }
+
+    private static void putRow(ByteBuffer buffer, long contentHash, long[] row) {
+        buffer.putLong(contentHash);
+        buffer.putLong(row[0]);
+        buffer.putLong(row[1]);
+        buffer.putLong(row[2]);
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public enum Match {
+
+        /**
+         * The photo wasn't written by the pipeline, or was written with other settings.
+         */
+        NONE,
+
+        /**
+         * The pipeline wrote the photo with the same settings, for another photo ID. Only its
+         * exif needs updating.
+         */
+        PARAMETERS,
+
+        /**
+         * The pipeline wrote the photo with the same settings for the same photo ID, there's
+         * nothing to do.
+         */
+        EXACT
+    }
+}
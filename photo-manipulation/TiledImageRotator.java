@@ -0,0 +1,234 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * Applies an EXIF orientation to a full size jpeg one band of output rows at a time. Each band
+ * is decoded from the matching strip of the source with a BitmapRegionDecoder, remapped and
+ * fed to a {@link JpegStreamEncoder}. Memory is bounded by the band height times the longest
+ * side, not the size of the image, so native quality photos of any size can be rotated.
+ */
+public class TiledImageRotator {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * About 8MB per buffer for an 8000px image. Smaller bands use less memory but mean more
+     * region decodes, and every decode of a column strip has to entropy decode the full height
+     * of the source.
+     */
+    public static final int DEFAULT_BAND_HEIGHT = 256;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final int mBandHeight;
+
+    private long mPeakBytes;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    public TiledImageRotator() {
+        this(DEFAULT_BAND_HEIGHT);
+    }
+
+    public TiledImageRotator(int bandHeight) {
+        // whole MCU rows, so the encoder never has to hold a partial row between bands
+        mBandHeight = Math.max(16, bandHeight / 16 * 16);
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * The part of the source needed for output rows {@code top} to {@code bottom}.
+     */
+    static Rect sourceRect(int orientation, int width, int height, int top, int bottom) {
+        switch ( orientation ) {
+            case 3: // rotate 180
+            case 4: // flip vertical
+                return new Rect(0, height - bottom, width, height - top);
+            case 5: // transpose
+            case 6: // rotate 90
+                return new Rect(top, 0, bottom, height);
+            case 7: // transverse
+            case 8: // rotate 270
+                return new Rect(width - bottom, 0, width - top, height);
+            default:
+                return new Rect(0, top, width, bottom);
+        }
+    }
+
+    /**
+     * Fills output rows {@code top} to {@code top + rows} from the source strip returned by
+     * {@link #sourceRect}. Each output pixel maps to exactly one source pixel, so nothing is
+     * resampled.
+     *
+     * @param source the strip's pixels, {@code strip.right - strip.left} ints per row
+     * @param band the output rows, {@code outputWidth} ints per row
+     */
+    static void orientBand(int orientation, int width, int height, Rect strip, int[] source,
+                           int top, int rows, int[] band, int outputWidth) {
+        int stride = strip.right - strip.left;
+
+        // source x and y are linear in output x and y: s = a * x + b * y + c
+        int ax = 1, bx = 0, cx = 0;
+        int ay = 0, by = 1, cy = 0;
+
+        switch ( orientation ) {
+            case 2:
+                ax = -1; cx = width - 1;
+                break;
+            case 3:
+                ax = -1; cx = width - 1;
+                by = -1; cy = height - 1;
+                break;
+            case 4:
+                by = -1; cy = height - 1;
+                break;
+            case 5:
+                ax = 0; bx = 1;
+                ay = 1; by = 0;
+                break;
+            case 6:
+                ax = 0; bx = 1;
+                ay = -1; by = 0; cy = height - 1;
+                break;
+            case 7:
+                ax = 0; bx = -1; cx = width - 1;
+                ay = -1; by = 0; cy = height - 1;
+                break;
+            case 8:
+                ax = 0; bx = -1; cx = width - 1;
+                ay = 1; by = 0;
+                break;
+            default:
+                break;
+        }
+
+        int step = ax + ay * stride;
+
+        for ( int row = 0; row < rows; ++row ) {
+            int y = top + row;
+            int sourceX = bx * y + cx - strip.left;
+            int sourceY = by * y + cy - strip.top;
+            int index = sourceY * stride + sourceX;
+            int output = row * outputWidth;
+
+            for ( int x = 0; x < outputWidth; ++x ) {
+                band[output + x] = source[index];
+                index += step;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Writes the oriented photo to {@code destination} as a jpeg. Returns false if the source
+     * couldn't be decoded, in which case the destination is deleted.
+     */
+    public boolean rotate(String sourcePath, int orientation, int quality, File destination) throws IOException {
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(sourcePath, false);
+
+        if ( decoder == null ) {
+            return false;
+        }
+
+        boolean written = false;
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(destination), BUFFER_SIZE);
+
+        try {
+            written = rotate(decoder, orientation, quality, output);
+        }
+        finally {
+            decoder.recycle();
+            output.close();
+
+            if ( !written ) {
+                destination.delete();
+            }
+        }
+
+        return written;
+    }
+
+    /**
+     * The most memory the last rotation held at once: the decoded strip, its pixels and the
+     * output band.
+     */
+    public long getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private boolean rotate(BitmapRegionDecoder decoder, int orientation, int quality, OutputStream output)
+        throws IOException {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+
+        boolean transposed = ImageGeometry.isTransposed(orientation);
+        int outputWidth = transposed ? height : width;
+        int outputHeight = transposed ? width : height;
+
+        int[] source = new int[mBandHeight * Math.max(width, height)];
+        int[] band = new int[mBandHeight * outputWidth];
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        JpegStreamEncoder encoder = new JpegStreamEncoder(output, outputWidth, outputHeight, quality);
+
+        mPeakBytes = 4L * (source.length + band.length);
+
+        for ( int top = 0; top < outputHeight; top += mBandHeight ) {
+            int rows = Math.min(mBandHeight, outputHeight - top);
+            Rect strip = sourceRect(orientation, width, height, top, top + rows);
+
+            Bitmap region = decoder.decodeRegion(strip, options);
+
+            if ( region == null ) {
+                return false;
+            }
+
+            int stripWidth = strip.right - strip.left;
+            int stripHeight = strip.bottom - strip.top;
+
+            try {
+                mPeakBytes = Math.max(mPeakBytes, 4L * (source.length + band.length) + BitmapResizer.sizeOf(region));
+                region.getPixels(source, 0, stripWidth, 0, 0, stripWidth, stripHeight);
+            }
+            finally {
+                region.recycle();
+            }
+
+            orientBand(orientation, width, height, strip, source, top, rows, band, outputWidth);
+            encoder.writeRows(band, 0, outputWidth, rows);
+        }
+
+        encoder.finish();
+        return true;
+    }
+}
@@ -0,0 +1,224 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.sanselan.ImageReadException;
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.formats.jpeg.exifRewrite.ExifRewriter;
+import org.apache.sanselan.formats.tiff.constants.ExifTagConstants;
+import org.apache.sanselan.formats.tiff.constants.GPSTagConstants;
+import org.apache.sanselan.formats.tiff.constants.TiffConstants;
+import org.apache.sanselan.formats.tiff.constants.TiffFieldTypeConstants;
+import org.apache.sanselan.formats.tiff.write.TiffOutputDirectory;
+import org.apache.sanselan.formats.tiff.write.TiffOutputField;
+import org.apache.sanselan.formats.tiff.write.TiffOutputSet;
+
+/**
+ * Generates the jpegs the EXIF benchmarks run against. Every file is built from a fixed seed so
+ * two machines benchmark the same bytes, and is written once into java.io.tmpdir and reused on
+ * later runs.
+ */
+public class ExifBenchmarkCorpus {
+
+    // ------------------------------------------------------------------------
+    // Class Variables
+    // ------------------------------------------------------------------------
+
+    /**
+     * Bump this whenever the generated files change so stale ones aren't reused.
+     */
+    private static final int CORPUS_VERSION = 1;
+
+    /**
+     * Close to the biggest maker note that still fits in a single APP1 segment with the rest of
+     * the EXIF.
+     */
+    private static final int LARGE_MAKER_NOTE_SIZE = 48 * 1024;
+
+    private static final String DIRECTORY_NAME = "fulcrum-exif-corpus";
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Returns the photo for the variant and size, generating it first if needed.
+     */
+    public static synchronized File get(Variant variant, int megapixels) throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), DIRECTORY_NAME);
+
+        if ( !directory.isDirectory() && !directory.mkdirs() ) {
+            throw new IOException("could not create " + directory);
+        }
+
+        String name = String.format(Locale.US, "v%d_%s_%dmp.jpg", CORPUS_VERSION,
+                                    variant.name().toLowerCase(Locale.US), megapixels);
+        File photo = new File(directory, name);
+
+        if ( !photo.isFile() ) {
+            generate(variant, megapixels, photo);
+        }
+
+        return photo;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = { 1, 12, 50 };
+
+        for ( Variant variant : Variant.values() ) {
+            for ( int megapixels : sizes ) {
+                File photo = get(variant, megapixels);
+                System.out.println(photo + " (" + photo.length() + " bytes)");
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Class Methods
+    // ------------------------------------------------------------------------
+
+    private static void generate(Variant variant, int megapixels, File photo) throws IOException {
+        // 4:3 like most phone cameras, rounded to whole MCUs
+        int width = (int) Math.round(Math.sqrt(megapixels * 1e6 * 4 / 3) / 16) * 16;
+        int height = width * 3 / 4;
+
+        Random random = new Random(31L * variant.ordinal() + megapixels);
+
+        byte[] jpeg = encode(width, height, random);
+
+        if ( variant != Variant.NO_EXIF ) {
+            jpeg = addExif(jpeg, variant, width, height, random);
+        }
+
+        // write next to the final name and rename so an interrupted run never leaves a partial file
+        File temporary = new File(photo.getPath() + ".tmp");
+        OutputStream output = new FileOutputStream(temporary);
+
+        try {
+            output.write(jpeg);
+        }
+        finally {
+            output.close();
+        }
+
+        if ( !temporary.renameTo(photo) ) {
+            throw new IOException("could not rename " + temporary + " to " + photo);
+        }
+    }
+
+    private static byte[] encode(int width, int height, Random random) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+        // a gradient with some noise so the encoder produces a realistically sized file
+        int index = 0;
+        for ( int y = 0; y < height; ++y ) {
+            for ( int x = 0; x < width; ++x ) {
+                int noise = random.nextInt(32);
+                pixels[index++] = (byte) (x * 255 / width + noise);
+                pixels[index++] = (byte) (y * 255 / height + noise);
+                pixels[index++] = (byte) ((x + y) * 127 / (width + height) + noise);
+            }
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(width * height / 4);
+
+        if ( !ImageIO.write(image, "jpg", output) ) {
+            throw new IOException("no jpeg writer available");
+        }
+
+        return output.toByteArray();
+    }
+
+    private static byte[] addExif(byte[] jpeg, Variant variant, int width, int height, Random random)
+        throws IOException {
+
+        int byteOrder = variant == Variant.CAMERA_MOTOROLA ? TiffConstants.BYTE_ORDER_MOTOROLA
+                                                           : TiffConstants.BYTE_ORDER_INTEL;
+
+        try {
+            TiffOutputSet exif = new TiffOutputSet(byteOrder);
+
+            if ( variant != Variant.GPS_ONLY ) {
+                TiffOutputDirectory root = exif.getOrCreateRootDirectory();
+                root.add(TiffOutputField.create(ExifTagConstants.EXIF_TAG_MAKE, byteOrder, "Fulcrum"));
+                root.add(TiffOutputField.create(ExifTagConstants.EXIF_TAG_MODEL, byteOrder, "Benchmark"));
+                root.add(TiffOutputField.create(ExifTagConstants.EXIF_TAG_ORIENTATION, byteOrder, 6));
+
+                TiffOutputDirectory exifDirectory = exif.getOrCreateExifDirectory();
+                exifDirectory.add(TiffOutputField.create(ExifTagConstants.EXIF_TAG_DATE_TIME_ORIGINAL, byteOrder,
+                                                         "2021:03:04 05:06:07"));
+                exifDirectory.add(TiffOutputField.create(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_WIDTH, byteOrder, width));
+                exifDirectory.add(TiffOutputField.create(ExifTagConstants.EXIF_TAG_EXIF_IMAGE_LENGTH, byteOrder, height));
+
+                if ( variant == Variant.MAKER_NOTES ) {
+                    byte[] makerNote = new byte[LARGE_MAKER_NOTE_SIZE];
+                    random.nextBytes(makerNote);
+
+                    exifDirectory.add(new TiffOutputField(ExifTagConstants.EXIF_TAG_MAKER_NOTE.tag,
+                                                          ExifTagConstants.EXIF_TAG_MAKER_NOTE,
+                                                          TiffFieldTypeConstants.FIELD_TYPE_UNDEFINED,
+                                                          makerNote.length, makerNote));
+                }
+            }
+
+            exif.setGPSInDegrees(-97.7431, 30.2672);
+
+            TiffOutputDirectory gps = exif.getOrCreateGPSDirectory();
+            gps.add(TiffOutputField.create(GPSTagConstants.GPS_TAG_GPS_ALTITUDE_REF, byteOrder,
+                                           GPSTagConstants.GPS_TAG_GPS_ALTITUDE_REF_VALUE_ABOVE_SEA_LEVEL));
+            gps.add(TiffOutputField.create(GPSTagConstants.GPS_TAG_GPS_ALTITUDE, byteOrder, 149.5));
+            gps.add(TiffOutputField.create(GPSTagConstants.GPS_TAG_GPS_IMG_DIRECTION, byteOrder, 270.5));
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(jpeg.length + LARGE_MAKER_NOTE_SIZE);
+            new ExifRewriter().updateExifMetadataLossless(jpeg, output, exif);
+
+            return output.toByteArray();
+        }
+        catch ( ImageReadException | ImageWriteException e ) {
+            throw new IOException(e);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public enum Variant {
+
+        /**
+         * No APP1 segment at all.
+         */
+        NO_EXIF,
+
+        /**
+         * Only a GPS directory, the way some scanners and editors leave it.
+         */
+        GPS_ONLY,
+
+        /**
+         * Camera fields and GPS, little endian like most Android phones.
+         */
+        CAMERA_INTEL,
+
+        /**
+         * The same fields big endian, like many dedicated cameras.
+         */
+        CAMERA_MOTOROLA,
+
+        /**
+         * Camera fields plus a large opaque maker note the parser has to step over.
+         */
+        MAKER_NOTES
+    }
+}
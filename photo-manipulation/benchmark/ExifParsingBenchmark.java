@@ -0,0 +1,150 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sanselan.Sanselan;
+import org.apache.sanselan.formats.jpeg.JpegImageMetadata;
+import org.apache.sanselan.formats.tiff.TiffImageMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for the EXIFUtils read paths over every {@link ExifBenchmarkCorpus} variant and
+ * size. Throughput and SampleTime (p50 through p99.99) are measured for each method, and
+ * {@link #main(String[])} adds the GC profiler for gc.alloc.rate.norm. {@link #sanselan} is
+ * the full Sanselan decode EXIFUtils used before it read the APP1 segment itself, so it's the
+ * baseline the rest are compared to.
+ *
+ * Everything here runs on a plain JVM. Orientation goes through
+ * {@link EXIFUtils#EXIF_RECORD_ORIENTATION_READER} instead of ExifInterface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx2g", "-Djava.awt.headless=true" })
+public class ExifParsingBenchmark {
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    @Param({ "NO_EXIF", "GPS_ONLY", "CAMERA_INTEL", "CAMERA_MOTOROLA", "MAKER_NOTES" })
+    public ExifBenchmarkCorpus.Variant variant;
+
+    @Param({ "1", "12", "50" })
+    public int megapixels;
+
+    private File mPhoto;
+
+    private String mPath;
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder options = new OptionsBuilder();
+        options.include(ExifParsingBenchmark.class.getSimpleName());
+        options.addProfiler(GCProfiler.class);
+
+        new Runner(options.build()).run();
+    }
+
+    // ------------------------------------------------------------------------
+    // Lifecycle
+    // ------------------------------------------------------------------------
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mPhoto = ExifBenchmarkCorpus.get(variant, megapixels);
+        mPath = mPhoto.getAbsolutePath();
+
+        EXIFUtils.setOrientationReader(EXIFUtils.EXIF_RECORD_ORIENTATION_READER);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        EXIFUtils.setOrientationReader(null);
+        EXIFUtils.getExifCache().clear();
+    }
+
+    // ------------------------------------------------------------------------
+    // Benchmarks
+    // ------------------------------------------------------------------------
+
+    /**
+     * The full Sanselan decode getImageMetadata used to do, which reads the whole file.
+     */
+    @Benchmark
+    public TiffImageMetadata sanselan() throws Exception {
+        JpegImageMetadata metadata = (JpegImageMetadata) Sanselan.getMetadata(mPhoto);
+        return metadata == null ? null : metadata.getExif();
+    }
+
+    /**
+     * A cold read of every field into a map, over the APP1 reader.
+     */
+    @Benchmark
+    public HashMap<String, Object> getRawEXIF() {
+        EXIFUtils.getExifCache().clear();
+        return EXIFUtils.getRawEXIF(mPhoto);
+    }
+
+    /**
+     * A cold read. The cache is cleared first so every call parses the file.
+     */
+    @Benchmark
+    public HashMap<String, Object> getEXIF() {
+        EXIFUtils.getExifCache().clear();
+        return EXIFUtils.getEXIF(mPhoto);
+    }
+
+    /**
+     * A warm read, which costs a stat of the file and building the map.
+     */
+    @Benchmark
+    public HashMap<String, Object> getEXIFCached() {
+        return EXIFUtils.getEXIF(mPhoto);
+    }
+
+    @Benchmark
+    public int getOrientation() {
+        EXIFUtils.getExifCache().clear();
+        return EXIFUtils.getOrientation(mPath);
+    }
+
+    @Benchmark
+    public TiffImageMetadata getImageMetadata() throws Exception {
+        EXIFUtils.getExifCache().clear();
+        return EXIFUtils.getImageMetadata(mPhoto);
+    }
+
+    /**
+     * The single pass the resize task reads a photo's header with. Compare against
+     * getImageMetadata plus getOrientation for the two reads it replaced.
+     */
+    @Benchmark
+    public ImageHeaderProbe probeHeader() throws IOException {
+        return ImageHeaderProbe.probe(mPhoto);
+    }
+}
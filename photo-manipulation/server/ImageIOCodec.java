@@ -0,0 +1,189 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * An {@link ImageCodec} for plain JVMs, on ImageIO and Java2D. Like the app, it decodes with
+ * the largest power of two subsampling that stays at or above the target. It then scales and
+ * orients the rest of the way in one bilinear pass and writes jpegs with the given quality.
+ * Every method is safe to call from several threads at once.
+ */
+public class ImageIOCodec implements ImageCodec<BufferedImage> {
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Maps the decoded image, already scaled to {@code width} by {@code height}, to the upright
+     * output. The same mapping as BitmapResizer.postOrientation in the app.
+     */
+    static AffineTransform orientation(int orientation, int width, int height) {
+        switch ( orientation ) {
+            case 2: // flip horizontal
+                return new AffineTransform(-1, 0, 0, 1, width, 0);
+            case 3: // rotate 180
+                return new AffineTransform(-1, 0, 0, -1, width, height);
+            case 4: // flip vertical
+                return new AffineTransform(1, 0, 0, -1, 0, height);
+            case 5: // transpose
+                return new AffineTransform(0, 1, 1, 0, 0, 0);
+            case 6: // rotate 90
+                return new AffineTransform(0, 1, -1, 0, height, 0);
+            case 7: // transverse
+                return new AffineTransform(0, -1, -1, 0, height, width);
+            case 8: // rotate 270
+                return new AffineTransform(0, -1, 1, 0, 0, width);
+            default:
+                return new AffineTransform();
+        }
+    }
+
+    private static BufferedImage draw(BufferedImage source, AffineTransform transform, int width, int height) {
+        BufferedImage output = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = output.createGraphics();
+
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, transform, null);
+        }
+        finally {
+            graphics.dispose();
+        }
+
+        return output;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    @Override
+    public BufferedImage decode(String path, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
+                                int orientation) throws IOException {
+        if ( sourceWidth <= 0 || sourceHeight <= 0 || targetWidth <= 0 || targetHeight <= 0 ) {
+            return null;
+        }
+
+        targetWidth = Math.min(targetWidth, sourceWidth);
+        targetHeight = Math.min(targetHeight, sourceHeight);
+
+        BufferedImage decoded = read(new File(path),
+                                     ImageGeometry.calculateInSampleSize(sourceWidth, sourceHeight,
+                                                                        targetWidth, targetHeight));
+
+        if ( decoded == null ) {
+            return null;
+        }
+
+        AffineTransform transform = orientation(orientation, targetWidth, targetHeight);
+        transform.scale((double) targetWidth / decoded.getWidth(), (double) targetHeight / decoded.getHeight());
+
+        boolean transposed = ImageGeometry.isTransposed(orientation);
+
+        return draw(decoded, transform, transposed ? targetHeight : targetWidth,
+                    transposed ? targetWidth : targetHeight);
+    }
+
+    @Override
+    public BufferedImage scale(BufferedImage image, int width, int height) {
+        AffineTransform transform = AffineTransform.getScaleInstance((double) width / image.getWidth(),
+                                                                     (double) height / image.getHeight());
+        return draw(image, transform, width, height);
+    }
+
+    @Override
+    public int getWidth(BufferedImage image) {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight(BufferedImage image) {
+        return image.getHeight();
+    }
+
+    @Override
+    public String getMimeType() {
+        return ImageHeaderProbe.MIME_TYPE_JPEG;
+    }
+
+    @Override
+    public void compress(BufferedImage image, int quality, OutputStream output) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(output);
+
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(Math.max(1, Math.min(100, quality)) / 100f);
+
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally {
+            writer.dispose();
+            stream.close();
+        }
+    }
+
+    @Override
+    public void release(BufferedImage image) {
+        if ( image != null ) {
+            image.flush();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private static BufferedImage read(File file, int sampleSize) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(file);
+
+        if ( stream == null ) {
+            return null;
+        }
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+
+            if ( !readers.hasNext() ) {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+
+            try {
+                reader.setInput(stream, true, true);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+
+                return reader.read(0, param);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        finally {
+            stream.close();
+        }
+    }
+}
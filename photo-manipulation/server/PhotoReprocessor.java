@@ -0,0 +1,324 @@
+package com.spatialnetworks.fulcrum.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sanselan.ImageReadException;
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.formats.tiff.constants.TiffConstants;
+import org.apache.sanselan.formats.tiff.write.TiffOutputSet;
+
+/**
+ * Runs the app's resize pipeline over photos that are already uploaded, in parallel on every
+ * core. Changing a quality tier means reprocessing the whole back catalog, which is only
+ * practical on servers. Each photo is probed, decoded subsampled, scaled and oriented, stamped
+ * with the same exif as {@link ImageFileResizeTask} writes and written once, like the app
+ * does.
+ *
+ * Photos are named by their photo ID, which goes in the exif the same way. Photos that are
+ * already the right size and upright are left alone, unless a compression target is given. The
+ * quality a photo was written at can't be read back from it, so with a target a photo is only
+ * left alone if the {@link ProcessedPhotoLedger} shows it was already written with it.
+ *
+ * @param <I> the codec's image type
+ */
+public class PhotoReprocessor<I> {
+
+    // ------------------------------------------------------------------------
+    // Instance Variables
+    // ------------------------------------------------------------------------
+
+    private final ImageCodec<I> mCodec;
+
+    private final ExifStamper mStamper;
+
+    private final int mLargestDimension;
+
+    private final CompressionTarget mCompressionTarget;
+
+    private File mOutputDirectory;
+
+    private ProcessedPhotoLedger mLedger;
+
+    // ------------------------------------------------------------------------
+    // Constructors
+    // ------------------------------------------------------------------------
+
+    /**
+     * @param largestDimension  the new largest side, like the app's quality setting, 0 for native
+     * @param compressionTarget the quality to re-encode every photo at, or null to only rewrite
+     *                          photos that need resizing or orienting, at the default quality
+     */
+    public PhotoReprocessor(ImageCodec<I> codec, ExifStamper stamper, int largestDimension,
+                            CompressionTarget compressionTarget) {
+        mCodec = codec;
+        mStamper = stamper;
+        mLargestDimension = largestDimension;
+        mCompressionTarget = compressionTarget;
+    }
+
+    // ------------------------------------------------------------------------
+    // Class Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Reprocesses every jpeg in a directory in place:
+     * {@code PhotoReprocessor <directory> <largest dimension|native> [compression] [output directory]}
+     * The photos written are recorded in a ledger in the directory written to, so running it
+     * again with the same settings skips them.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if ( args.length < 2 ) {
+            System.err.println("usage: PhotoReprocessor <directory> <largest dimension|native> " +
+                                   "[compression] [output directory]");
+            System.exit(1);
+        }
+
+        File[] files = new File(args[0]).listFiles();
+        List<File> photos = new ArrayList<>();
+
+        if ( files != null ) {
+            for ( File file : files ) {
+                String name = file.getName().toLowerCase(Locale.US);
+
+                if ( file.isFile() && (name.endsWith(".jpg") || name.endsWith(".jpeg")) ) {
+                    photos.add(file);
+                }
+            }
+        }
+
+        Collections.sort(photos);
+
+        int largestDimension = args[1].equals("native") ? 0 : Integer.parseInt(args[1]);
+        CompressionTarget target = args.length > 2 ? CompressionTarget.parse(args[2]) : null;
+
+        // the artist and software already in each photo are kept
+        ExifStamper stamper = new ExifStamper(null, null, null, null);
+        PhotoReprocessor<?> reprocessor = new PhotoReprocessor<>(new ImageIOCodec(), stamper, largestDimension, target);
+        File directory = new File(args[0]);
+
+        if ( args.length > 3 ) {
+            directory = new File(args[3]);
+            reprocessor.setOutputDirectory(directory);
+        }
+
+        directory.mkdirs();
+        reprocessor.setLedger(ProcessedPhotoLedger.load(new File(directory, ProcessedPhotoLedger.FILE_NAME)));
+
+        Result result = reprocessor.run(photos, Runtime.getRuntime().availableProcessors());
+
+        for ( String failure : result.getFailures() ) {
+            System.err.println(failure);
+        }
+
+        System.out.println(result);
+    }
+
+    private static String photoID(File photo) {
+        String name = photo.getName();
+        int extension = name.lastIndexOf('.');
+
+        return extension > 0 ? name.substring(0, extension) : name;
+    }
+
+    // ------------------------------------------------------------------------
+    // Public Methods
+    // ------------------------------------------------------------------------
+
+    /**
+     * Writes the results into a directory instead of over the originals.
+     */
+    public void setOutputDirectory(File outputDirectory) {
+        mOutputDirectory = outputDirectory;
+    }
+
+    /**
+     * Records every photo written, and skips photos it shows were already written with the
+     * same settings. With an output directory it's the photo written there that's looked up.
+     */
+    public void setLedger(ProcessedPhotoLedger ledger) {
+        mLedger = ledger;
+    }
+
+    /**
+     * Processes every photo on a pool of {@code threads} threads and waits for them all.
+     */
+    public Result run(List<File> photos, int threads) throws InterruptedException {
+        final Result result = new Result();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        if ( mOutputDirectory != null ) {
+            mOutputDirectory.mkdirs();
+        }
+
+        long start = System.nanoTime();
+
+        for ( final File photo : photos ) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if ( process(photo) ) {
+                            result.mProcessed.incrementAndGet();
+                        }
+                        else {
+                            result.mSkipped.incrementAndGet();
+                        }
+                    }
+                    catch ( IOException | ImageReadException | ImageWriteException | RuntimeException e ) {
+                        result.addFailure(photo, e);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        result.mElapsedNanos = System.nanoTime() - start;
+
+        return result;
+    }
+
+    /**
+     * Reprocesses one photo on the calling thread. Returns false if it didn't need it.
+     */
+    public boolean process(File photo) throws IOException, ImageReadException, ImageWriteException {
+        File destination = mOutputDirectory != null ? new File(mOutputDirectory, photo.getName()) : photo;
+        String photoID = photoID(photo);
+        String parameters = mLargestDimension + " " + mCompressionTarget;
+
+        // written into the output directory by an earlier run, and the original hasn't changed since
+        if ( !destination.equals(photo) && destination.exists() && destination.lastModified() >= photo.lastModified() &&
+            isRecorded(destination, parameters, photoID) ) {
+            return false;
+        }
+
+        ImageHeaderProbe header = ImageHeaderProbe.probe(photo);
+
+        if ( !header.hasSize() ) {
+            throw new IOException("Could not read the size of " + photo);
+        }
+
+        int originalWidth = header.getWidth();
+        int originalHeight = header.getHeight();
+        int orientation = header.getOrientation();
+
+        // the same scaling as ImageFileResizeTask
+        float scaleFactor;
+        if ( mLargestDimension == 0 ) {
+            scaleFactor = 1;
+        }
+        else if ( originalHeight >= originalWidth ) {
+            scaleFactor = (float) mLargestDimension / originalHeight;
+        }
+        else {
+            scaleFactor = (float) mLargestDimension / originalWidth;
+        }
+
+        int newWidth = Math.min(originalWidth, Math.round(originalWidth * scaleFactor));
+        int newHeight = Math.min(originalHeight, Math.round(originalHeight * scaleFactor));
+
+        if ( newWidth == originalWidth && newHeight == originalHeight && orientation <= 1 && destination.equals(photo) &&
+            (mCompressionTarget == null || isRecorded(photo, parameters, photoID)) ) {
+            return false;
+        }
+
+        I image = mCodec.decode(photo.getPath(), originalWidth, originalHeight, newWidth, newHeight, orientation);
+
+        if ( image == null ) {
+            throw new IOException("Could not decode " + photo);
+        }
+
+        try {
+            TiffOutputSet exif = header.getOutputSet(TiffConstants.DEFAULT_TIFF_BYTE_ORDER);
+
+            // the pixels are upright now
+            exif.removeField(TiffConstants.EXIF_TAG_ORIENTATION);
+            exif.removeField(TiffConstants.TIFF_TAG_ORIENTATION);
+
+            mStamper.writeExifInformation(exif, mCodec.getWidth(image), mCodec.getHeight(image), photoID);
+
+            ImageFileWriter.write(mCodec, image, mCompressionTarget != null ? mCompressionTarget : CompressionTarget.DEFAULT,
+                                  exif, destination);
+        }
+        finally {
+            mCodec.release(image);
+        }
+
+        if ( mLedger != null ) {
+            mLedger.record(ProcessedPhotoLedger.hash(destination), destination.length(), parameters, photoID);
+        }
+
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+    // Private Methods
+    // ------------------------------------------------------------------------
+
+    private boolean isRecorded(File photo, String parameters, String photoID) throws IOException {
+        return mLedger != null &&
+            mLedger.find(ProcessedPhotoLedger.hash(photo), photo.length(), parameters, photoID) ==
+                ProcessedPhotoLedger.Match.EXACT;
+    }
+
+    // ------------------------------------------------------------------------
+    // Inner Classes
+    // ------------------------------------------------------------------------
+
+    public static class Result {
+
+        private final AtomicInteger mProcessed = new AtomicInteger();
+
+        private final AtomicInteger mSkipped = new AtomicInteger();
+
+        private final List<String> mFailures = Collections.synchronizedList(new ArrayList<String>());
+
+        private long mElapsedNanos;
+
+        public int getProcessed() {
+            return mProcessed.get();
+        }
+
+        public int getSkipped() {
+            return mSkipped.get();
+        }
+
+        public List<String> getFailures() {
+            return Arrays.asList(mFailures.toArray(new String[0]));
+        }
+
+        public long getElapsedNanos() {
+            return mElapsedNanos;
+        }
+
+        /**
+         * Photos processed, skipped or failed per second of wall time.
+         */
+        public double getPhotosPerSecond() {
+            int photos = mProcessed.get() + mSkipped.get() + mFailures.size();
+            return mElapsedNanos == 0 ? 0 : photos * 1e9 / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d processed, %d skipped, %d failed in %.1fs, %.1f photos/s",
+                                 mProcessed.get(), mSkipped.get(), mFailures.size(), mElapsedNanos / 1e9,
+                                 getPhotosPerSecond());
+        }
+
+        private void addFailure(File photo, Exception e) {
+            mFailures.add(photo + ": " + e);
+        }
+    }
+}